@@ -0,0 +1,190 @@
+package com.github.drichm.ev3.lib;
+
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.lib.hardware.SysFS;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+
+/**
+ * Closed-loop PID controller running on the brick: reads a sensor attribute and drives a tacho-motor's
+ * duty_cycle_sp at a fixed period, on its own high priority thread
+ * <p>
+ * Integral is clamped to the output limits (anti-windup) and the derivative is taken on the measurement,
+ * so retuning the setpoint does not kick the output. A failed sensor read sets the output to 0.
+ */
+public class Controller extends FixedRate
+{
+  //===========================================================================
+
+  /** Gains and setpoint - replaced as a whole so the loop never sees half a retune */
+  static public class Gains
+  {
+    public final double setpoint;
+    public final double kp;
+    public final double ki;
+    public final double kd;
+    
+    /** Output limits, as duty cycle percent */
+    public final double min;
+    public final double max;
+    
+    public Gains( double setpoint, double kp, double ki, double kd, double min, double max )
+    {
+      if ( !Double.isFinite( setpoint ) || !Double.isFinite( kp ) || !Double.isFinite( ki ) || !Double.isFinite( kd ) )
+        throw new IllegalArgumentException( "Setpoint and gains must be finite numbers" );
+      
+      if ( !(min < max) || min < -100 || max > 100 )
+        throw new IllegalArgumentException( "Output limits must be within -100..100, min < max" );
+
+      this.setpoint = setpoint;
+      this.kp       = kp;
+      this.ki       = ki;
+      this.kd       = kd;
+      this.min      = min;
+      this.max      = max;
+    }
+  }
+  
+  /** Point-in-time copy for reporting */
+  static public class Report
+  {
+    public final String           sensor;
+    public final String           motor;
+    public final boolean          running;
+    public final Gains            gains;
+    public final double           input;
+    public final long             output;
+    public final long             failures;
+    public final LoopStats.Report loop;
+    
+    Report( Controller c )
+    {
+      this.sensor   = c.sensor.name() + "/" + c.attr.name();
+      this.motor    = c.motor.name();
+      this.running  = c.running();
+      this.gains    = c.gains;
+      this.input    = c.input;
+      this.output   = c.output;
+      this.failures = c.failures;
+      this.loop     = c.stats.report();
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final SysFS              sysfs;
+  public final DeviceNodeInstance sensor;
+  public final AttributeInstance  attr;
+  public final DeviceNodeInstance motor;
+  
+  private volatile Gains          gains;
+  
+  /** Last input read and output written, and number of failed reads */
+  private volatile double         input;
+  private volatile long           output;
+  private volatile long           failures;
+  
+  /** Loop state - loop thread only */
+  private final Reading           reading = new Reading();
+  private double                  integral;
+  private double                  lastInput;
+  private boolean                 primed;
+  
+  
+  public Controller( String name, SysFS sysfs, DeviceNodeInstance sensor, AttributeInstance attr, DeviceNodeInstance motor, Gains gains, long periodNanos )
+  {
+    super( name, periodNanos, Thread.MAX_PRIORITY );
+    
+    this.sysfs  = sysfs;
+    this.sensor = sensor;
+    this.attr   = attr;
+    this.motor  = motor;
+    this.gains  = gains;
+  }
+
+  
+  //===========================================================================
+
+  public Gains gains()  { return gains; }
+  
+  /** Retune live */
+  public void tune( Gains gains )
+  {
+    this.gains = gains;
+  }
+  
+  public Report report()  { return new Report( this ); }
+  
+  
+  /** Put motor into run-direct at 0 duty, then start the loop */
+  @Override public synchronized void start()
+  {
+    if ( running() )
+      return;
+
+    integral = 0;
+    primed   = false;
+    
+    sysfs.write( motor, Tacho.DUTY_CYCLE_SP, 0 );
+    sysfs.write( motor, Tacho.COMMAND, Tacho.RUN_DIRECT );
+    
+    super.start();
+  }
+
+  /** Stop the loop, then stop the motor */
+  @Override public synchronized void stop()
+  {
+    super.stop();
+    
+    sysfs.write( motor, Tacho.DUTY_CYCLE_SP, 0 );
+    sysfs.write( motor, Tacho.COMMAND, Tacho.STOP );
+    
+    output = 0;
+  }
+  
+  
+  //===========================================================================
+
+  @Override protected void tick( long deadline )
+  {
+    Gains g = gains;
+
+    if ( !sysfs.readInt( sensor, attr, reading ).ok() )
+    {
+      failures = failures + 1;
+      primed   = false;
+      write( 0 );
+      return;
+    }
+
+    double dt    = periodNanos / 1e9;
+    double in    = reading.value;
+    double error = g.setpoint - in;
+    
+    integral = clamp( integral + g.ki * error * dt, g.min, g.max );
+    
+    double derivative = primed ? (in - lastInput) / dt : 0;
+    
+    lastInput = in;
+    primed    = true;
+    input     = in;
+    
+    write( Math.round( clamp( g.kp * error + integral - g.kd * derivative, g.min, g.max ) ) );
+  }
+  
+  private void write( long duty )
+  {
+    if ( duty != output || !primed )
+      sysfs.write( motor, Tacho.DUTY_CYCLE_SP, duty );
+
+    output = duty;
+  }
+  
+  static private double clamp( double x, double min, double max )
+  {
+    return x < min ? min : x > max ? max : x;
+  }
+
+}
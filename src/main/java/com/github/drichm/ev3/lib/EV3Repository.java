@@ -1,25 +1,90 @@
 package com.github.drichm.ev3.lib;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import com.github.drichm.ev3.lib.device.DeviceNode;
 import com.github.drichm.ev3.lib.devices.Device;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
 import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
 import com.github.drichm.ev3.lib.hardware.SysFS;
+import com.github.drichm.ev3.lib.hardware.ValueCache;
 
 /**
  * All devices currently attached to the EV3
+ * <p>
+ * Once {@link #start(long)}ed, a background thread rescans for hot-plugged devices and publishes
+ * an immutable {@link Snapshot}, so readers never touch the file system.
+ * <p>
+ * {@link Listener}s are told of devices added and removed, in order, on a single dispatch thread.
  */
 public class EV3Repository
 {
   // ==========================================================================
 
-  public final SysFS sysfs;
+  /** Immutable view of attached devices and their attributes */
+  static public class Snapshot
+  {
+    /** Incremented each time nodes are added or removed */
+    public final long                     version;
+    
+    /** System.currentTimeMillis() when scanned */
+    public final long                     millis;
+
+    /** Active nodes, sorted */
+    public final List<DeviceNodeInstance> nodes;
+    
+    /** node:attributes map */
+    public final Map<DeviceNodeInstance,List<AttributeInstance>> attributes;
+    
+    /** Copies nodes and each attribute array, so nothing shared with the caller can change the snapshot */
+    public Snapshot( long version, DeviceNodeInstance[] nodes, Map<DeviceNodeInstance,AttributeInstance[]> attributes )
+    {
+      Map<DeviceNodeInstance,List<AttributeInstance>> copy = new HashMap<>();
+      
+      attributes.forEach( (n,a) -> copy.put( n, List.of( a ) ) );
+      
+      this.version    = version;
+      this.millis     = System.currentTimeMillis();
+      this.nodes      = List.of( nodes );
+      this.attributes = Collections.unmodifiableMap( copy );
+    }
+    
+    /** Attributes of node, none if not known */
+    public List<AttributeInstance> attributes( DeviceNodeInstance node )
+    {
+      return attributes.getOrDefault( node, List.of() );
+    }
+  }
+
+  
+  /** Hot-plug subscriber - called on the repository's dispatch thread, so should not block for long */
+  public interface Listener
+  {
+    default void added  ( DeviceNodeInstance node )  {}
+    default void removed( DeviceNodeInstance node )  {}
+  }
+  
+  
+  // ==========================================================================
+
+  public final SysFS      sysfs;
+  
+  /** Cached reads of attributes that rarely change */
+  public final ValueCache values;
   
   /** subpath:instance map for active node instances */
   private final Map<String,DeviceNodeInstance> active = new ConcurrentHashMap<>();
@@ -27,10 +92,26 @@ public class EV3Repository
   /** Known Devices */
   private final Map<DeviceNode,Device>         device = new ConcurrentHashMap<>();
 
+  /** Latest published snapshot */
+  private volatile Snapshot snapshot = new Snapshot( 0, new DeviceNodeInstance[0], Collections.emptyMap() );
+  
+  /** Fingerprint of device directories at last scan */
+  private long stamp;
+
+  /** Background scanner, null if not started */
+  private ScheduledExecutorService scanner;
+  
+  /** Subscribers, replaced as a whole on change so dispatch needs no lock */
+  private final AtomicReference<Listener[]> listeners = new AtomicReference<>( new Listener[0] );
+
+  /** Single thread all listeners are called on */
+  private final ExecutorService             dispatch  = Executors.newSingleThreadExecutor( daemon( "ev3-events" ) );
+  
   
   public EV3Repository( SysFS sysfs )
   {
-    this.sysfs = sysfs;
+    this.sysfs  = sysfs;
+    this.values = new ValueCache( sysfs );
   }
   
   
@@ -50,23 +131,178 @@ public class EV3Repository
   }
 
 
-  public void scan()
+  /** Rescan all devices and publish a new snapshot */
+  public synchronized void scan()
   {
+    stamp = sysfs.stamp( scannable );
+
     Map<String,DeviceNodeInstance> now = sysfs.nodes( scannable ).collect( Collectors.toMap( n -> n.name(), n -> n ) );
     
     DeviceNodeInstance[] removed = active.values().stream().filter( v -> !now   .containsKey( v.name() ) ).toArray( DeviceNodeInstance[]::new );
     DeviceNodeInstance[] added   = now   .values().stream().filter( v -> !active.containsKey( v.name() ) ).toArray( DeviceNodeInstance[]::new );
     
-    Arrays.stream( removed ).forEach( n -> active.remove( n.name() ) );
+    Arrays.stream( removed ).forEach( n -> { active.remove( n.name() ); sysfs.close( n ); values.close( n ); } );
     Arrays.stream( added   ).forEach( n -> active.put   ( n.name(), n ) );
+
+    boolean changed = removed.length > 0 || added.length > 0;
+
+    publish( changed );
     
-    // TODO notify monitors: added & removed
+    if ( changed )
+    {
+      // listeners as of now: any added later are told of these nodes by addListener()
+      Listener[] all = listeners.get();
+      
+      dispatch.execute( () -> notify( all, removed, added ) );
+    }
+  }
+
+  /** Rescan only if device directories have changed since the last scan */
+  public synchronized void rescan()
+  {
+    if ( sysfs.stamp( scannable ) != stamp )
+      scan();
   }
   
   
+  /** Publish snapshot of active nodes, with a new version only if nodes were added or removed */
+  private void publish( boolean changed )
+  {
+    DeviceNodeInstance[] nodes = active();
+    
+    Arrays.sort( nodes );
+
+    Map<DeviceNodeInstance,AttributeInstance[]> attributes = new HashMap<>();
+    
+    for ( DeviceNodeInstance n: nodes )
+      attributes.put( n, sysfs.attributes( n ) );
+    
+    snapshot = new Snapshot( changed ? snapshot.version + 1 : snapshot.version, nodes, attributes );
+  }
+  
+
+  /** Latest published snapshot - no file system access */
+  public Snapshot snapshot()
+  {
+    return snapshot;
+  }
+  
   public DeviceNodeInstance[] active()
   {
     return active.values().stream().toArray( DeviceNodeInstance[]::new );
   }
 
-}
\ No newline at end of file
+  
+  // ==========================================================================
+  // Background scanning
+
+  /** Scan now, then rescan in the background every interval milliseconds - restarts if already started */
+  public synchronized void start( long intervalMillis )
+  {
+    stop();
+    
+    scan();
+
+    scanner = Executors.newSingleThreadScheduledExecutor( daemon( "ev3-scanner" ) );
+    
+    scanner.scheduleWithFixedDelay( this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+  }
+
+  /** Stop background scanning */
+  public synchronized void stop()
+  {
+    if ( scanner != null )
+      scanner.shutdownNow();
+    
+    scanner = null;
+  }
+  
+  private void tick()
+  {
+    try
+    {
+      rescan();
+    }
+    catch ( RuntimeException e )
+    {
+      // keep scanning
+      e.printStackTrace();
+    }
+  }
+
+  static private ThreadFactory daemon( String name )
+  {
+    return r ->
+    {
+      Thread t = new Thread( r, name );
+      t.setDaemon( true );
+      return t;
+    };
+  }
+  
+  
+  // ==========================================================================
+  // Listeners
+
+  /** Subscribe to hot-plug events - the listener is first told of all devices currently active */
+  public synchronized void addListener( Listener listener )
+  {
+    Listener[] now, next;
+    
+    do
+    {
+      now  = listeners.get();
+      next = Arrays.copyOf( now, now.length + 1 );
+      next[ now.length ] = listener;
+    }
+    while ( !listeners.compareAndSet( now, next ) );
+    
+    // synchronized with scan(), so this is queued in order with scan events
+    List<DeviceNodeInstance> nodes = snapshot.nodes;
+    
+    dispatch.execute( () -> nodes.forEach( n -> call( listener, n, true ) ) );
+  }
+
+  /** Unsubscribe from hot-plug events */
+  public void removeListener( Listener listener )
+  {
+    Listener[] now, next;
+    
+    do
+    {
+      now  = listeners.get();
+      next = Arrays.stream( now ).filter( l -> l != listener ).toArray( Listener[]::new );
+    }
+    while ( !listeners.compareAndSet( now, next ) );
+  }
+  
+  
+  /** Tell all listeners of changes, removals first */
+  static private void notify( Listener[] all, DeviceNodeInstance[] removed, DeviceNodeInstance[] added )
+  {
+    for ( DeviceNodeInstance n: removed )
+      for ( Listener l: all )
+        call( l, n, false );
+
+    for ( DeviceNodeInstance n: added )
+      for ( Listener l: all )
+        call( l, n, true );
+  }
+
+  static private void call( Listener listener, DeviceNodeInstance node, boolean added )
+  {
+    try
+    {
+      if ( added )
+        listener.added( node );
+      else
+        listener.removed( node );
+    }
+    catch ( RuntimeException e )
+    {
+      // one bad listener must not stop the others
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+package com.github.drichm.ev3.lib;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A loop that runs {@link #tick(long)} at a fixed period on its own thread
+ * <p>
+ * Deadlines are absolute, so lateness in one tick does not drift the next. A tick that overruns
+ * skips the deadlines it missed rather than running them back-to-back.
+ */
+abstract public class FixedRate
+{
+  //===========================================================================
+
+  public final String    name;
+  public final long      periodNanos;
+  public final int       priority;
+  public final LoopStats stats;
+  
+  private volatile Thread thread;
+
+  
+  protected FixedRate( String name, long periodNanos, int priority )
+  {
+    this.name        = name;
+    this.periodNanos = periodNanos;
+    this.priority    = priority;
+    this.stats       = new LoopStats( periodNanos );
+  }
+  
+  
+  /**
+   * Run one tick
+   * 
+   * @param deadline System.nanoTime() this tick was due
+   */
+  abstract protected void tick( long deadline );
+  
+  
+  //===========================================================================
+
+  public boolean running()  { return thread != null; }
+
+  /** Start loop, if not already running */
+  public synchronized void start()
+  {
+    if ( thread != null )
+      return;
+
+    thread = new Thread( this::loop, name );
+    thread.setDaemon  ( true );
+    thread.setPriority( priority );
+    thread.start();
+  }
+
+  /** Stop loop, waiting for any current tick to finish unless called from within a tick */
+  public synchronized void stop()
+  {
+    Thread t = thread;
+
+    thread = null;
+    
+    if ( t != null )
+    {
+      LockSupport.unpark( t );
+      
+      if ( t != Thread.currentThread() )
+        try
+        {
+          t.join( 1000 );
+        }
+        catch ( InterruptedException e )
+        {
+          Thread.currentThread().interrupt();
+        }
+    }
+  }
+
+  
+  private void loop()
+  {
+    Thread me   = Thread.currentThread();
+    long   next = System.nanoTime() + periodNanos;
+    
+    while ( thread == me )
+    {
+      long now;
+      
+      while ( (now = System.nanoTime()) < next )
+      {
+        LockSupport.parkNanos( this, next - now );
+
+        if ( thread != me )
+          return;
+      }
+      
+      long due = next;
+      
+      try
+      {
+        tick( due );
+      }
+      catch ( RuntimeException e )
+      {
+        // keep to the schedule
+        e.printStackTrace();
+      }
+      
+      long end    = System.nanoTime();
+      long missed = 0;
+      
+      next += periodNanos;
+      
+      while ( next <= end )
+      {
+        next += periodNanos;
+        missed++;
+      }
+
+      stats.tick( now - due, end - now, missed );
+    }
+  }
+
+}
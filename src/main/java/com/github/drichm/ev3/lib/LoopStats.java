@@ -0,0 +1,89 @@
+package com.github.drichm.ev3.lib;
+
+/**
+ * Timing of a fixed-period loop - how late each tick started, how long it ran, and how many deadlines were missed
+ * <p>
+ * Written by the loop thread only, read by anyone
+ */
+public class LoopStats
+{
+  //===========================================================================
+
+  /** Point-in-time copy for reporting */
+  static public class Report
+  {
+    public final long   periodNanos;
+    public final long   ticks;
+    public final long   overruns;
+    public final long   missed;
+    public final double meanJitterNanos;
+    public final long   maxJitterNanos;
+    public final double meanRunNanos;
+    public final long   maxRunNanos;
+    
+    Report( LoopStats s )
+    {
+      long ticks = s.ticks;
+      
+      this.periodNanos     = s.periodNanos;
+      this.ticks           = ticks;
+      this.overruns        = s.overruns;
+      this.missed          = s.missed;
+      this.meanJitterNanos = ticks == 0 ? 0 : (double) s.jitterSum / ticks;
+      this.maxJitterNanos  = s.jitterMax;
+      this.meanRunNanos    = ticks == 0 ? 0 : (double) s.runSum / ticks;
+      this.maxRunNanos     = s.runMax;
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final long periodNanos;
+  
+  private volatile long ticks;
+  private volatile long overruns;
+  private volatile long missed;
+  private volatile long jitterSum;
+  private volatile long jitterMax;
+  private volatile long runSum;
+  private volatile long runMax;
+
+  
+  public LoopStats( long periodNanos )
+  {
+    this.periodNanos = periodNanos;
+  }
+  
+  
+  /**
+   * Record one tick
+   * 
+   * @param late   nanoseconds tick started after its deadline
+   * @param run    nanoseconds tick ran for
+   * @param missed deadlines skipped because the tick overran
+   */
+  void tick( long late, long run, long missed )
+  {
+    ticks     = ticks     + 1;
+    jitterSum = jitterSum + late;
+    runSum    = runSum    + run;
+    
+    if ( late > jitterMax )
+      jitterMax = late;
+
+    if ( run > runMax )
+      runMax = run;
+    
+    if ( run > periodNanos )
+      overruns = overruns + 1;
+
+    this.missed = this.missed + missed;
+  }
+
+  public long ticks   ()  { return ticks; }
+  public long overruns()  { return overruns; }
+  public long missed  ()  { return missed; }
+
+  public Report report()  { return new Report( this ); }
+}
@@ -0,0 +1,267 @@
+package com.github.drichm.ev3.lib;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.lib.hardware.Result;
+import com.github.drichm.ev3.lib.hardware.SysFS;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.lib.hardware.ValueCache;
+
+/**
+ * Differential-drive pose from the left and right motors' tacho counts, integrated on the sampler thread
+ * <p>
+ * Both positions are read back-to-back in the same tick. Distances are in the units of the wheel diameter and
+ * track width given, heading in radians anticlockwise from the x axis. A motor mounted mirrored should have its
+ * polarity set to inversed, so that both count up going forward.
+ * <p>
+ * Poses are kept in a ring buffer of primitives, read the same way as a {@link Sampler.Channel}: many from a margin
+ * past the oldest, dropping any overwritten meanwhile, and the latest retried at most {@link Sampler#RETRIES} times.
+ */
+public class Odometry implements Sampler.Task
+{
+  //===========================================================================
+
+  /** Poses kept, unless told otherwise */
+  static public final int CAPACITY = 1024;
+  
+  
+  static public class Pose
+  {
+    public final long   nanos;
+    public final double x;
+    public final double y;
+    public final double heading;
+    
+    public Pose( long nanos, double x, double y, double heading )
+    {
+      this.nanos   = nanos;
+      this.x       = x;
+      this.y       = y;
+      this.heading = heading;
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final SysFS              sysfs;
+  public final ValueCache         values;
+  public final DeviceNodeInstance left;
+  public final DeviceNodeInstance right;
+  public final double             wheel;
+  public final double             track;
+  public final int                capacity;
+  
+  /** Poses between oldest() and a reader's start */
+  private final int               margin;
+  
+  private final long[]            times;
+  private final double[]          xs;
+  private final double[]          ys;
+  private final double[]          headings;
+  
+  /** Poses ever written */
+  private volatile long           count;
+  
+  /** Pose to restart from, applied on the next tick - null if none */
+  private final AtomicReference<Pose> reset = new AtomicReference<>( new Pose( 0, 0, 0, 0 ) );
+  
+  /** Outcome of last read, and number of failed ticks */
+  private volatile Result         result = Result.UNAVAILABLE;
+  private volatile long           failures;
+  
+  /** Integration state - sampler thread only */
+  private final Reading           reading = new Reading();
+  private double                  perCountLeft;     // distance per tacho count, 0 until count_per_rot is known
+  private double                  perCountRight;
+  private long                    lastLeft;
+  private long                    lastRight;
+  private boolean                 primed;
+  private double                  x, y, heading;
+
+  
+  public Odometry( SysFS sysfs, ValueCache values, DeviceNodeInstance left, DeviceNodeInstance right, double wheel, double track )
+  {
+    this( sysfs, values, left, right, wheel, track, CAPACITY );
+  }
+
+  /**
+   * @param wheel wheel diameter
+   * @param track distance between the wheels' contact points
+   */
+  public Odometry( SysFS sysfs, ValueCache values, DeviceNodeInstance left, DeviceNodeInstance right, double wheel, double track, int capacity )
+  {
+    if ( wheel <= 0 || track <= 0 || capacity < 2 )
+      throw new IllegalArgumentException( "Wheel diameter and track must be positive, capacity at least 2" );
+    
+    this.sysfs    = sysfs;
+    this.values   = values;
+    this.left     = left;
+    this.right    = right;
+    this.wheel    = wheel;
+    this.track    = track;
+    this.capacity = capacity;
+    this.margin   = capacity / 8;
+    this.times    = new long  [ capacity ];
+    this.xs       = new double[ capacity ];
+    this.ys       = new double[ capacity ];
+    this.headings = new double[ capacity ];
+  }
+  
+  
+  //===========================================================================
+
+  public Result result  ()  { return result; }
+  public long   failures()  { return failures; }
+
+  /** Sequence of next pose to be written */
+  public long   count   ()  { return count; }
+
+  /** Sequence of oldest pose that can be read safely */
+  public long   oldest  ()  { return Math.max( 0, count - capacity + 1 ); }
+  
+  
+  /** Restart from given pose on the next tick */
+  public void reset( double x, double y, double heading )
+  {
+    reset.set( new Pose( 0, x, y, heading ) );
+  }
+
+  /** Most recent pose, null if none yet - a newer one's parts mixed in if overwritten {@link Sampler#RETRIES} times over */
+  public Pose pose()
+  {
+    for ( int tries=0 ; ; tries++ )
+    {
+      long end = count;
+      
+      if ( end == 0 )
+        return null;
+
+      int  i    = (int) ((end - 1) % capacity);
+      Pose pose = new Pose( times[i], xs[i], ys[i], headings[i] );
+
+      if ( end - 1 >= oldest() || tries == Sampler.RETRIES )
+        return pose;
+    }
+  }
+  
+  /**
+   * Copy most recent poses, oldest first - from a margin past the oldest, less any overwritten while copying
+   * 
+   * @return number of poses copied, at most the smallest array's length
+   */
+  public int recent( long[] times, double[] xs, double[] ys, double[] headings )
+  {
+    long end   = count;
+    int  n     = (int) Math.min( Math.min( Math.min( times.length, xs.length ), Math.min( ys.length, headings.length ) ),
+                                 end - Math.max( 0, end - capacity + 1 + margin ) );
+    long first = end - n;
+    
+    for ( int i=0 ; i < n ; i++ )
+    {
+      int at = (int) ((first + i) % capacity);
+      
+      times   [i] = this.times   [at];
+      xs      [i] = this.xs      [at];
+      ys      [i] = this.ys      [at];
+      headings[i] = this.headings[at];
+    }
+    
+    // overwritten while copying - the oldest go first
+    int lost = (int) Math.min( n, Math.max( 0, oldest() - first ) );
+    
+    if ( lost > 0 )
+    {
+      System.arraycopy( times   , lost, times   , 0, n - lost );
+      System.arraycopy( xs      , lost, xs      , 0, n - lost );
+      System.arraycopy( ys      , lost, ys      , 0, n - lost );
+      System.arraycopy( headings, lost, headings, 0, n - lost );
+    }
+    
+    return n - lost;
+  }
+  
+  
+  //===========================================================================
+
+  /** Integrate one tick's movement - sampler thread only */
+  @Override public void sample( long nanos )
+  {
+    if ( perCountLeft == 0 || perCountRight == 0 )
+    {
+      perCountLeft  = perCount( left  );
+      perCountRight = perCount( right );
+    }
+    
+    Pose restart = reset.getAndSet( null );
+    
+    if ( restart != null )
+    {
+      x       = restart.x;
+      y       = restart.y;
+      heading = restart.heading;
+      primed  = false;
+    }
+    
+    if ( perCountLeft == 0 || perCountRight == 0 || !sysfs.readLong( left, Tacho.POSITION, reading ).ok() )
+    {
+      fail();
+      return;
+    }
+    
+    long l = reading.value;
+    
+    if ( !sysfs.readLong( right, Tacho.POSITION, reading ).ok() )
+    {
+      fail();
+      return;
+    }
+    
+    long r = reading.value;
+    
+    if ( primed )
+    {
+      double dl       = (l - lastLeft ) * perCountLeft;
+      double dr       = (r - lastRight) * perCountRight;
+      double distance = (dl + dr) / 2;
+      double turn     = (dr - dl) / track;
+      
+      // midpoint heading - exact for straight lines, second order for arcs
+      x       += distance * Math.cos( heading + turn / 2 );
+      y       += distance * Math.sin( heading + turn / 2 );
+      heading  = Math.IEEEremainder( heading + turn, 2 * Math.PI );
+    }
+    
+    lastLeft  = l;
+    lastRight = r;
+    primed    = true;
+    result    = Result.OK;
+    
+    int i = (int) (count % capacity);
+    
+    times   [i] = nanos;
+    xs      [i] = x;
+    ys      [i] = y;
+    headings[i] = heading;
+    
+    count = count + 1;      // publish
+  }
+  
+  /** Distance per tacho count of motor, 0 if count_per_rot cannot be read */
+  private double perCount( DeviceNodeInstance motor )
+  {
+    return values.readInt( motor, Tacho.COUNT_PER_ROT, reading ).ok() && reading.value > 0
+           ? Math.PI * wheel / reading.value
+           : 0;
+  }
+  
+  private void fail()
+  {
+    // positions are absolute, so the next good read picks up any movement missed
+    result   = reading.ok() ? Result.UNAVAILABLE : reading.result;
+    failures = failures + 1;
+  }
+
+}
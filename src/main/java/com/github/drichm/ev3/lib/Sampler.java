@@ -0,0 +1,409 @@
+package com.github.drichm.ev3.lib;
+
+import java.util.Arrays;
+
+import com.github.drichm.ev3.lib.filter.Filter;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.lib.hardware.Result;
+import com.github.drichm.ev3.lib.hardware.SysFS;
+
+/**
+ * Reads registered (device, attribute) channels at a fixed rate on one thread, into preallocated ring buffers
+ * <p>
+ * Readers take the latest or recent samples from a {@link Channel} without touching sysfs.
+ * Sampling allocates nothing. {@link Task}s that need several values from the same tick run after the channels.
+ * <p>
+ * Channels are shared: each {@link #add} of one is a use of it, ended by {@link #release}, and it is sampled until
+ * its last use ends. As a repository {@link EV3Repository.Listener}, drops the channels of a device when it is
+ * unplugged - users find them {@link Channel#closed()}.
+ */
+public class Sampler extends FixedRate implements EV3Repository.Listener
+{
+  //===========================================================================
+
+  /** Samples kept per channel, unless told otherwise */
+  static public final int CAPACITY = 1024;
+
+  /** Most channels sampled at once - each takes 12 bytes per sample, more if filtered */
+  static public final int MAX_CHANNELS = 64;
+
+  /** Times a reader of the latest sample retries after finding it overwritten */
+  static public final int RETRIES      = 3;
+
+  
+  /**
+   * Samples of one integer attribute, as (System.nanoTime(), value) pairs in a ring buffer
+   * <p>
+   * Samples are numbered from 0 by sequence. Only the sampler thread writes - readers copy what they want,
+   * then check with {@link #oldest()} that it was not overwritten while they copied. A reader of many samples
+   * starts from {@link #safe()}, a margin past the oldest, and drops any overwritten rather than starting over -
+   * which with a full ring and a slow reader would never finish.
+   * <p>
+   * A channel given a {@link Filter} also keeps the filtered value of each sample, filtered once as it is taken.
+   */
+  static public class Channel
+  {
+    public final int                id;
+    public final DeviceNodeInstance node;
+    public final AttributeInstance  attr;
+    public final int                capacity;
+    
+    /** Samples between oldest() and safe() */
+    private final int               margin;
+    
+    private final long[]            times;
+    private final int[]             values;
+    
+    /** Samples ever written */
+    private volatile long           count;
+
+    /** Filter, and filtered value of each sample - null if not filtered */
+    private volatile Filter         filter;
+    private volatile double[]       filtered;
+    private Filter                  using;       // sampler thread's copy of filter
+    
+    /** Outcome of last read, and number of failed reads */
+    private volatile Result         result = Result.UNAVAILABLE;
+    private volatile long           failures;
+    
+    /** Uses not yet released - sampler's lock - and whether no longer sampled */
+    private int                     uses;
+    private volatile boolean        closed;
+    
+    
+    Channel( int id, DeviceNodeInstance node, AttributeInstance attr, int capacity )
+    {
+      this.id       = id;
+      this.node     = node;
+      this.attr     = attr;
+      this.capacity = capacity;
+      this.margin   = capacity / 8;
+      this.times    = new long[ capacity ];
+      this.values   = new int [ capacity ];
+    }
+
+    /** Read and store one sample - sampler thread only */
+    void sample( SysFS sysfs, Reading reading )
+    {
+      long time = System.nanoTime();
+
+      if ( sysfs.readInt( node, attr, reading ).ok() )
+      {
+        int i = (int) (count % capacity);
+
+        times [i] = time;
+        values[i] = (int) reading.value;
+
+        Filter f = filter;
+        
+        if ( f != using )
+        {
+          // new filter: start from its first sample
+          if ( f != null )
+            f.reset();
+
+          using = f;
+        }
+        
+        if ( f != null )
+          filtered[i] = f.apply( time, reading.value );
+
+        count = count + 1;      // publish
+      }
+      else
+        failures = failures + 1;
+
+      result = reading.result;
+    }
+    
+    
+    /** Filter every sample from now on, null for none */
+    public synchronized void filter( Filter filter )
+    {
+      if ( filter != null && filtered == null )
+        filtered = new double[ capacity ];
+
+      this.filter = filter;
+    }
+
+    public Filter filter()  { return filter; }
+    
+    
+    public Result result  ()  { return result; }
+    public long   failures()  { return failures; }
+
+    /** No longer sampled - released by all its users, or its device unplugged */
+    public boolean closed ()  { return closed; }
+
+    /** Sequence of next sample to be written */
+    public long   count   ()  { return count; }
+
+    /** Sequence of oldest sample that can be read safely */
+    public long   oldest  ()  { return Math.max( 0, count - capacity + 1 ); }
+
+    /** Sequence to start reading many samples from - capacity / 8 ticks from being overwritten */
+    public long   safe    ()  { return Math.max( 0, count - capacity + 1 + margin ); }
+
+    /** Time of sample seq - check it is still at or after {@link #oldest()} after reading */
+    public long   timeAt  ( long seq )  { return times [ (int) (seq % capacity) ]; }
+
+    /** Value of sample seq - check it is still at or after {@link #oldest()} after reading */
+    public int    valueAt ( long seq )  { return values[ (int) (seq % capacity) ]; }
+
+    /**
+     * Filtered value of sample seq, or its raw value if not filtered - check it is still at or after {@link #oldest()}
+     * after reading. Samples taken before the filter was set have no filtered value.
+     */
+    public double filteredAt( long seq )
+    {
+      double[] f = filtered;
+      
+      return f == null || filter == null ? valueAt( seq ) : f[ (int) (seq % capacity) ];
+    }
+
+
+    /**
+     * Copy most recent samples, oldest first - from no earlier than {@link #safe()}, less any overwritten while copying
+     * 
+     * @return number of samples copied, at most the smaller array's length
+     */
+    public int recent( long[] times, int[] values )
+    {
+      long end   = count;
+      int  n     = (int) Math.min( Math.min( times.length, values.length ), end - Math.max( 0, end - capacity + 1 + margin ) );
+      long first = end - n;
+      
+      for ( int i=0 ; i < n ; i++ )
+      {
+        times [i] = timeAt ( first + i );
+        values[i] = valueAt( first + i );
+      }
+      
+      // overwritten while copying - the oldest go first
+      int lost = (int) Math.min( n, Math.max( 0, oldest() - first ) );
+      
+      if ( lost > 0 )
+      {
+        System.arraycopy( times , lost, times , 0, n - lost );
+        System.arraycopy( values, lost, values, 0, n - lost );
+      }
+      
+      return n - lost;
+    }
+    
+    /** Most recent value, 0 if none - a newer one if overwritten {@link #RETRIES} times over */
+    public int latest()
+    {
+      for ( int tries=0 ; ; tries++ )
+      {
+        long end = count;
+        
+        if ( end == 0 )
+          return 0;
+
+        int value = valueAt( end - 1 );
+
+        if ( end - 1 >= oldest() || tries == RETRIES )
+          return value;
+      }
+    }
+
+    /** Most recent filtered value, or raw value if not filtered, 0 if none - as latest() */
+    public double latestFiltered()
+    {
+      for ( int tries=0 ; ; tries++ )
+      {
+        long end = count;
+        
+        if ( end == 0 )
+          return 0;
+
+        double value = filteredAt( end - 1 );
+
+        if ( end - 1 >= oldest() || tries == RETRIES )
+          return value;
+      }
+    }
+
+    /** Time of most recent value, 0 if none - as latest() */
+    public long latestNanos()
+    {
+      for ( int tries=0 ; ; tries++ )
+      {
+        long end = count;
+        
+        if ( end == 0 )
+          return 0;
+
+        long time = timeAt( end - 1 );
+
+        if ( end - 1 >= oldest() || tries == RETRIES )
+          return time;
+      }
+    }
+  }
+  
+  
+  /** Work done on the sampler thread every tick, after the channels are sampled - must not block */
+  static public interface Task
+  {
+    /**
+     * @param nanos System.nanoTime() the tick was due
+     */
+    public void sample( long nanos );
+  }
+  
+  
+  /** Point-in-time copy for reporting */
+  static public class Report
+  {
+    public final LoopStats.Report loop;
+    public final int              channels;
+    public final int              tasks;
+    
+    Report( Sampler s )
+    {
+      this.loop     = s.stats.report();
+      this.channels = s.channels.length;
+      this.tasks    = s.tasks.length;
+    }
+  }
+
+  
+  //===========================================================================
+
+  public final SysFS         sysfs;
+  
+  /** All channels, replaced as a whole on change so sampling needs no lock */
+  private volatile Channel[] channels = {};
+  
+  /** All tasks, likewise */
+  private volatile Task[]    tasks    = {};
+  
+  private int                nextId;
+
+  /** Read holder - sampler thread only */
+  private final Reading      reading = new Reading();
+  
+  
+  public Sampler( SysFS sysfs, long periodNanos )
+  {
+    super( "ev3-sampler", periodNanos, Thread.MAX_PRIORITY - 1 );
+    
+    this.sysfs = sysfs;
+  }
+  
+  
+  //===========================================================================
+  
+  /** Sample attribute of node, starting the sampler if need be - returns any existing channel for it, to be released */
+  public Channel add( DeviceNodeInstance node, AttributeInstance attr )
+  {
+    return add( node, attr, CAPACITY );
+  }
+
+  /**
+   * Sample attribute of node, starting the sampler if need be - returns any existing channel for it, to be released
+   * 
+   * @return channel, null if a new one is needed but {@link #MAX_CHANNELS} are already sampled
+   */
+  public synchronized Channel add( DeviceNodeInstance node, AttributeInstance attr, int capacity )
+  {
+    Channel c = channel( node, attr );
+    
+    if ( c == null )
+    {
+      if ( channels.length >= MAX_CHANNELS )
+        return null;
+      
+      c = new Channel( nextId++, node, attr, capacity );
+      
+      Channel[] next = Arrays.copyOf( channels, channels.length + 1 );
+      next[ channels.length ] = c;
+      channels = next;
+    }
+    
+    c.uses++;
+    
+    start();
+    
+    return c;
+  }
+
+  /** End one use of channel, which stops being sampled when none are left */
+  public synchronized void release( Channel channel )
+  {
+    if ( channel.closed || --channel.uses > 0 )
+      return;
+
+    channel.closed = true;
+    channels = Arrays.stream( channels ).filter( c -> c != channel ).toArray( Channel[]::new );
+  }
+
+  /** Stop sampling all channels of node - device unplugged */
+  @Override public synchronized void removed( DeviceNodeInstance node )
+  {
+    for ( Channel c: channels )
+      if ( c.node.equals( node ) )
+        c.closed = true;
+    
+    channels = Arrays.stream( channels ).filter( c -> !c.closed ).toArray( Channel[]::new );
+  }
+  
+  
+  /** Run task every tick, starting the sampler if need be */
+  public synchronized void add( Task task )
+  {
+    Task[] next = Arrays.copyOf( tasks, tasks.length + 1 );
+    next[ tasks.length ] = task;
+    tasks = next;
+    
+    start();
+  }
+
+  /** Stop running task */
+  public synchronized void remove( Task task )
+  {
+    tasks = Arrays.stream( tasks ).filter( t -> t != task ).toArray( Task[]::new );
+  }
+  
+  
+  /** Channel sampling attribute of node, null if none */
+  public Channel channel( DeviceNodeInstance node, AttributeInstance attr )
+  {
+    for ( Channel c: channels )
+      if ( c.node.equals( node ) && c.attr.equals( attr ) )
+        return c;
+
+    return null;
+  }
+
+  /** Channel with given id, null if none */
+  public Channel channel( int id )
+  {
+    for ( Channel c: channels )
+      if ( c.id == id )
+        return c;
+
+    return null;
+  }
+  
+  public Channel[] channels()  { return channels; }
+  
+  public Report report()  { return new Report( this ); }
+
+  
+  //===========================================================================
+
+  @Override protected void tick( long deadline )
+  {
+    for ( Channel c: channels )
+      c.sample( sysfs, reading );
+    
+    for ( Task t: tasks )
+      t.sample( deadline );
+  }
+
+}
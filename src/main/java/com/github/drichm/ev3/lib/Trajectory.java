@@ -0,0 +1,357 @@
+package com.github.drichm.ev3.lib;
+
+import java.util.Arrays;
+
+import com.github.drichm.ev3.lib.hardware.CommandBatch;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.lib.hardware.SysFS;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+
+/**
+ * Runs motion profiles for tacho-motors on the brick, one scheduler thread for all moves
+ * <p>
+ * Each tick streams the profile's velocity to speed_sp (in run-forever), corrected by how far the motor
+ * has fallen behind or run ahead of the planned position, but never above the move's speed. At the end the motor is handed the exact target
+ * through position_sp and run-to-abs-pos, which settles and holds it.
+ * <p>
+ * Positions are tacho counts, velocities counts per second and accelerations counts per second per second.
+ */
+public class Trajectory extends FixedRate
+{
+  //===========================================================================
+
+  /** Shape of the velocity ramps */
+  static public enum Profile
+  {
+    /** Constant acceleration ramps */
+    trapezoid( 1 ),
+    
+    /** Raised-cosine ramps - acceleration eases in and out, peaking at the given limit */
+    scurve   ( Math.PI / 2 );
+    
+    /** Ramp time, as multiple of velocity / acceleration */
+    final double k;
+    
+    private Profile( double k )  { this.k = k; }
+  }
+
+  
+  static public enum State { running, done, cancelled, failed }
+  
+  
+  /** One motor's move from its current position to a target */
+  static public class Move
+  {
+    public final DeviceNodeInstance motor;
+    public final long               target;
+    public final double             speed;
+    public final double             accel;
+    public final Profile            profile;
+
+    /** Position at start, direction, peak velocity reached, ramp and cruise seconds */
+    private long                    start;
+    private int                     sign;
+    private double                  peak;
+    private double                  ramp;
+    private double                  cruise;
+    private long                    startNanos;
+
+    private volatile State          state = State.running;
+    
+    /** Planned and actual position at last tick, and number of failed reads or writes */
+    private volatile long           planned;
+    private volatile long           actual;
+    private volatile long           failures;
+    
+    private final Reading           reading = new Reading();
+
+    
+    public Move( DeviceNodeInstance motor, long target, double speed, double accel, Profile profile )
+    {
+      if ( speed <= 0 || accel <= 0 )
+        throw new IllegalArgumentException( "Speed and acceleration must be positive" );
+      
+      this.motor   = motor;
+      this.target  = target;
+      this.speed   = speed;
+      this.accel   = accel;
+      this.profile = profile;
+    }
+
+    
+    public State state   ()  { return state; }
+    public long  planned ()  { return planned; }
+    public long  actual  ()  { return actual; }
+    public long  failures()  { return failures; }
+    
+    /** Seconds the move takes from start to target */
+    public double duration()  { return 2 * ramp + cruise; }
+    
+
+    /** Plan from given start position */
+    void plan( long start, long startNanos )
+    {
+      double distance = Math.abs( target - start );
+      double k        = profile.k;
+      
+      this.start      = start;
+      this.sign       = target < start ? -1 : 1;
+      this.startNanos = startNanos;
+      this.peak       = speed;
+      
+      // too short to reach full speed: triangular profile
+      if ( k * speed * speed / accel > distance )
+        this.peak = Math.sqrt( distance * accel / k );
+
+      this.ramp   = k * peak / accel;
+      this.cruise = peak == 0 ? 0 : (distance - peak * ramp) / peak;
+    }
+    
+    /** Planned velocity at t seconds from start */
+    double velocity( double t )
+    {
+      double end = 2 * ramp + cruise;
+      
+      if ( t <= 0 || t >= end )
+        return 0;
+      
+      double into = t < ramp ? t : t > ramp + cruise ? end - t : ramp;
+
+      return sign * peak * ramp( into / ramp );
+    }
+    
+    /** Planned position at t seconds from start */
+    double position( double t )
+    {
+      double end = 2 * ramp + cruise;
+
+      if ( t <= 0 )
+        return start;
+      
+      if ( t >= end )
+        return target;
+
+      double d;
+      
+      if ( t < ramp )
+        d = peak * ramp * rampArea( t / ramp );
+      else
+      if ( t <= ramp + cruise )
+        d = peak * ramp / 2 + peak * (t - ramp);
+      else
+        d = Math.abs( target - start ) - peak * ramp * rampArea( (end - t) / ramp );
+      
+      return start + sign * d;
+    }
+    
+    /** Ramp fraction of peak velocity at fraction x of ramp time */
+    private double ramp( double x )
+    {
+      return profile == Profile.trapezoid ? x : (1 - Math.cos( Math.PI * x )) / 2;
+    }
+    
+    /** Integral of ramp from 0 to x */
+    private double rampArea( double x )
+    {
+      return profile == Profile.trapezoid ? x * x / 2 : (x - Math.sin( Math.PI * x ) / Math.PI) / 2;
+    }
+  }
+
+  
+  /** Point-in-time copy for reporting */
+  static public class Report
+  {
+    public final String  motor;
+    public final State   state;
+    public final Profile profile;
+    public final long    target;
+    public final long    planned;
+    public final long    actual;
+    public final long    failures;
+    public final double  duration;
+    
+    Report( Move m )
+    {
+      this.motor    = m.motor.name();
+      this.state    = m.state;
+      this.profile  = m.profile;
+      this.target   = m.target;
+      this.planned  = m.planned;
+      this.actual   = m.actual;
+      this.failures = m.failures;
+      this.duration = m.duration();
+    }
+  }
+  
+  
+  //===========================================================================
+
+  /** Position error gain - counts per second of speed_sp per count behind */
+  static public final double KP = 4;
+  
+  /** Failed reads or writes after which a move is abandoned and its motor stopped */
+  static public final int    MAX_FAILURES = 10;
+  
+  
+  public final SysFS      sysfs;
+  
+  /** Moves in progress, replaced as a whole on change so ticks need no lock */
+  private volatile Move[] moves = {};
+
+  
+  public Trajectory( SysFS sysfs, long periodNanos )
+  {
+    super( "ev3-trajectory", periodNanos, Thread.MAX_PRIORITY - 1 );
+    
+    this.sysfs = sysfs;
+  }
+
+  
+  //===========================================================================
+
+  /**
+   * Start moves together, replacing any move already running on the same motors
+   * <p>
+   * Current positions are read first, then the motors are started with one command batch
+   */
+  public synchronized void start( Move... start )
+  {
+    Reading      reading = new Reading();
+    CommandBatch batch   = new CommandBatch();
+    
+    for ( Move m: start )
+    {
+      cancel( m.motor, State.cancelled );
+      
+      if ( !sysfs.readInt( m.motor, Tacho.POSITION, reading ).ok() )
+      {
+        m.state = State.failed;
+        continue;
+      }
+      
+      m.actual = m.planned = reading.value;
+      
+      batch.set    ( m.motor, Tacho.SPEED_SP, 0 )
+           .command( m.motor, Tacho.RUN_FOREVER );
+    }
+    
+    sysfs.writeAll( batch );
+
+    long now = System.nanoTime();
+    
+    Move[] next = Arrays.copyOf( moves, moves.length + start.length );
+    int    n    = moves.length;
+    
+    for ( Move m: start )
+      if ( m.state == State.running )
+      {
+        m.plan( m.actual, now );
+        next[ n++ ] = m;
+      }
+    
+    moves = Arrays.copyOf( next, n );
+    
+    start();
+  }
+  
+  /** Stop move running on motor, and the motor, if any */
+  public synchronized void cancel( DeviceNodeInstance motor )
+  {
+    cancel( motor, State.cancelled );
+  }
+
+  /** Stop all moves, and their motors */
+  public synchronized void cancel()
+  {
+    for ( Move m: moves )
+      cancel( m.motor, State.cancelled );
+  }
+  
+  public Report[] report()
+  {
+    return Arrays.stream( moves ).map( Report::new ).toArray( Report[]::new );
+  }
+  
+  
+  private synchronized void cancel( DeviceNodeInstance motor, State state )
+  {
+    for ( Move m: moves )
+      if ( m.motor.equals( motor ) )
+      {
+        m.state = state;
+        sysfs.write( motor, Tacho.COMMAND, Tacho.STOP );
+      }
+    
+    remove();
+  }
+
+  /** Drop moves no longer running */
+  private synchronized void remove()
+  {
+    moves = Arrays.stream( moves ).filter( m -> m.state == State.running ).toArray( Move[]::new );
+  }
+  
+  
+  //===========================================================================
+
+  @Override protected void tick( long deadline )
+  {
+    boolean finished = false;
+    
+    // a cancel between the state check and the writes would have its STOP undone, and its state overwritten
+    for ( Move m: moves )
+      synchronized ( this )
+      {
+        if ( m.state == State.running )
+          finished |= tick( m, deadline );
+      }
+    
+    if ( finished )
+      remove();
+  }
+
+  /** Advance move to deadline, true if it is no longer running - holding the lock cancels take */
+  private boolean tick( Move m, long deadline )
+  {
+    double t = (deadline - m.startNanos) / 1e9;
+
+    if ( t >= m.duration() )
+    {
+      // hand over the exact target, and let the motor settle and hold it
+      sysfs.write( m.motor, Tacho.POSITION_SP, m.target );
+      sysfs.write( m.motor, Tacho.SPEED_SP   , Math.round( m.speed ) );
+      sysfs.write( m.motor, Tacho.COMMAND    , Tacho.RUN_TO_ABS_POS );
+      
+      m.planned = m.target;
+      m.state   = State.done;
+      return true;
+    }
+    
+    double planned = m.position( t );
+    double speed   = m.velocity( t );
+
+    if ( sysfs.readInt( m.motor, Tacho.POSITION, m.reading ).ok() )
+    {
+      m.actual = m.reading.value;
+      speed   += KP * (planned - m.actual);
+    }
+    else
+      m.failures = m.failures + 1;
+
+    // never above the move's speed, which may be the motor's max
+    speed     = Math.max( -m.speed, Math.min( m.speed, speed ) );
+    m.planned = Math.round( planned );
+    
+    if ( !sysfs.write( m.motor, Tacho.SPEED_SP, Math.round( speed ) ).ok() )
+      m.failures = m.failures + 1;
+    
+    if ( m.failures < MAX_FAILURES )
+      return false;
+
+    sysfs.write( m.motor, Tacho.COMMAND, Tacho.STOP );
+    m.state = State.failed;
+    return true;
+  }
+
+}
@@ -62,5 +62,9 @@ public class Attribute extends Named
     this.mode    = mode == null ? Mode.ro : mode;
     this.values  = values;
   }
+  
+
+  /** How often this attribute's value changes */
+  public Volatility volatility()  { return Volatility.of( this ); }
 
 }
@@ -0,0 +1,49 @@
+package com.github.drichm.ev3.lib.device;
+
+import java.util.Set;
+
+/** How often an attribute's value changes, and so whether it may be cached */
+public enum Volatility
+{
+  /** Never changes while the device stays plugged in */
+  fixed,
+  
+  /** Only changes when written - by us, so cached until any attribute of the device is written */
+  slow,
+  
+  /** Changes by itself, or is written at loop rate by Controller and Trajectory - always read */
+  live;
+  
+
+  //===========================================================================
+
+  static private final Set<String> FIXED = Set.of
+  (
+    "address", "driver_name", "modes", "commands", "stop_actions", "fw_version",
+    "max_speed", "count_per_rot", "count_per_m", "full_travel_count", "max_brightness", "triggers"
+  );
+
+  static private final Set<String> SLOW = Set.of
+  (
+    "mode", "units", "decimals", "num_values", "bin_data_format", "poll_ms",
+    "polarity", "stop_action", "time_sp", "ramp_up_sp", "ramp_down_sp",
+    "hold_pid", "speed_pid", "trigger"
+  );
+  
+  /**
+   * Volatility of attribute, by name - anything not known to be cacheable is live
+   * <p>
+   * duty_cycle_sp, position_sp and speed_sp are live: control loops write them directly to sysfs on every tick.
+   * An LED's brightness is live too, as triggers (heartbeat, timer, disk activity) change it without any write.
+   */
+  static public Volatility of( Attribute attr )
+  {
+    if ( FIXED.contains( attr.topname ) )
+      return fixed;
+    else
+    if ( SLOW.contains( attr.topname ) )
+      return slow;
+    else
+      return live;
+  }
+}
@@ -16,6 +16,11 @@ public class LegoSensor extends Device
   {
     super( new DeviceNode( "lego-sensor", "sensor" + Named.N ) );
     
-    add( new Attribute( "address", Type.a, Mode.ro ) );
+    add( new Attribute( "address"        , Type.a , Mode.ro )
+       , new Attribute( "decimals"       , Type.si, Mode.ro )
+       , new Attribute( "num_values"     , Type.si, Mode.ro )
+       , new Attribute( "bin_data"       , Type.b , Mode.ro )
+       , new Attribute( "bin_data_format", Type.s , Mode.ro, "u8", "s8", "u16", "s16", "s16_be", "s32", "float" )
+       );
   }
 }
@@ -16,7 +16,7 @@ public class LegoSonicSensorEV3 extends LegoSensor
        , new Attribute( "mode"       , "US-DIST-CM", "US-DIST-IN", "US-LISTEN", "US-SI-CM", "US-SI-IN", "US-DC-CM", "US-DC-IN" )
        , new Attribute( "modes"      , Type.sl, Mode.ro )
        , new Attribute( "units"      , Type.s , Mode.ro )
-       , new Attribute( "value0"     , Type.s , Mode.ro )
+       , new Attribute( "value0"     , Type.si, Mode.ro )
        );
   }
 }
@@ -0,0 +1,29 @@
+package com.github.drichm.ev3.lib.filter;
+
+/** Hold output steady until the value moves more than width away from it */
+public class Deadband implements Filter
+{
+  public final double width;
+  
+  private double  out;
+  private boolean primed;
+  
+  public Deadband( double width )
+  {
+    if ( !Double.isFinite( width ) || width < 0 )
+      throw new IllegalArgumentException( "Deadband width must be finite and not negative: " + width );
+
+    this.width = width;
+  }
+
+  @Override public double apply( long nanos, double value )
+  {
+    if ( !primed || Math.abs( value - out ) > width )
+      out = value;
+
+    primed = true;
+    return out;
+  }
+
+  @Override public void reset()  { primed = false; }
+}
@@ -0,0 +1,28 @@
+package com.github.drichm.ev3.lib.filter;
+
+/** Exponential moving average: each output moves alpha of the way from the last output to the new value */
+public class Ema implements Filter
+{
+  public final double alpha;
+  
+  private double  out;
+  private boolean primed;
+  
+  public Ema( double alpha )
+  {
+    if ( Double.isNaN( alpha ) || alpha <= 0 || alpha > 1 )
+      throw new IllegalArgumentException( "EMA alpha must be in (0,1]: " + alpha );
+
+    this.alpha = alpha;
+  }
+
+  @Override public double apply( long nanos, double value )
+  {
+    out    = primed ? out + alpha * (value - out) : value;
+    primed = true;
+
+    return out;
+  }
+
+  @Override public void reset()  { primed = false; }
+}
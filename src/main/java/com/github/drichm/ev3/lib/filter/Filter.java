@@ -0,0 +1,21 @@
+package com.github.drichm.ev3.lib.filter;
+
+/**
+ * One stage of a signal filter, run on each new sample
+ * <p>
+ * Implementations keep only preallocated primitive state, so filtering allocates nothing.
+ * A filter is used by one thread only.
+ */
+public interface Filter
+{
+  /**
+   * Filter next sample
+   * 
+   * @param nanos System.nanoTime() sample was taken
+   * @param value raw or previously filtered value
+   */
+  public double apply( long nanos, double value );
+  
+  /** Forget all history */
+  public void   reset();
+}
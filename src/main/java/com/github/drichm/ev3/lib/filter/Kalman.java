@@ -0,0 +1,49 @@
+package com.github.drichm.ev3.lib.filter;
+
+/**
+ * One dimensional Kalman filter for a value that is roughly constant between samples
+ * <p>
+ * q is how much the true value is expected to change per sample, r how noisy the measurements are -
+ * a larger r/q ratio smooths more.
+ */
+public class Kalman implements Filter
+{
+  public final double q;
+  public final double r;
+  
+  /** Estimate and its variance */
+  private double  x;
+  private double  p;
+  private boolean primed;
+
+  public Kalman( double q, double r )
+  {
+    if ( !Double.isFinite( q ) || !Double.isFinite( r ) || q <= 0 || r <= 0 )
+      throw new IllegalArgumentException( "Kalman q and r must be finite and positive: " + q + ", " + r );
+
+    this.q = q;
+    this.r = r;
+  }
+
+  @Override public double apply( long nanos, double value )
+  {
+    if ( !primed )
+    {
+      x      = value;
+      p      = r;
+      primed = true;
+      return x;
+    }
+    
+    p += q;
+    
+    double k = p / (p + r);
+    
+    x += k * (value - x);
+    p *= 1 - k;
+
+    return x;
+  }
+
+  @Override public void reset()  { primed = false; }
+}
@@ -0,0 +1,72 @@
+package com.github.drichm.ev3.lib.filter;
+
+/** Median of the last window values - removes spikes without smearing steps */
+public class MovingMedian implements Filter
+{
+  /** Largest window - windows come from request parameters */
+  static public final int MAX_WINDOW = 255;
+  
+  public final int window;
+  
+  /** Last values in arrival order (ring), and the same values kept sorted */
+  private final double[] ring;
+  private final double[] sorted;
+  private int            count;
+  private int            next;
+  
+  public MovingMedian( int window )
+  {
+    if ( window < 1 || window > MAX_WINDOW )
+      throw new IllegalArgumentException( "Median window must be 1 to " + MAX_WINDOW + ": " + window );
+
+    this.window = window;
+    this.ring   = new double[ window ];
+    this.sorted = new double[ window ];
+  }
+
+  @Override public double apply( long nanos, double value )
+  {
+    if ( count == window )
+      remove( ring[ next ] );
+    else
+      count++;
+
+    ring[ next ] = value;
+    next = (next + 1) % window;
+    
+    insert( value );
+
+    return (count & 1) == 1 ? sorted[ count / 2 ] : (sorted[ count / 2 - 1 ] + sorted[ count / 2 ]) / 2;
+  }
+
+  /** Remove one instance of value from sorted values, leaving count - 1 of them */
+  private void remove( double value )
+  {
+    int i = 0;
+
+    while ( i < count - 1 && sorted[i] != value )
+      i++;
+
+    System.arraycopy( sorted, i + 1, sorted, i, count - 1 - i );
+  }
+
+  /** Insert value into the count - 1 sorted values */
+  private void insert( double value )
+  {
+    int i = count - 1;
+
+    while ( i > 0 && sorted[ i-1 ] > value )
+    {
+      sorted[i] = sorted[ i-1 ];
+      i--;
+    }
+
+    sorted[i] = value;
+  }
+
+  @Override public void reset()
+  {
+    count = 0;
+    next  = 0;
+  }
+}
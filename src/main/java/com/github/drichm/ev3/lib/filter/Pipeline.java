@@ -0,0 +1,94 @@
+package com.github.drichm.ev3.lib.filter;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Filters run in sequence, each on the output of the one before
+ * <p>
+ * Built from a text spec of comma separated stages, each a name and colon separated parameters:
+ * <pre>
+ * median:5        moving median of last 5 values
+ * ema:0.2         exponential moving average, alpha 0.2
+ * deadband:2      ignore changes of 2 or less
+ * rate            rate of change per second
+ * kalman:0.01:4   1D Kalman filter, q 0.01, r 4
+ * </pre>
+ */
+public class Pipeline implements Filter
+{
+  /** Most stages a spec may have */
+  static public final int MAX_STAGES = 16;
+  
+  public final String   spec;
+  
+  private final Filter[] stages;
+  
+  public Pipeline( Filter... stages )
+  {
+    this.stages = stages;
+    this.spec   = Arrays.stream( stages ).map( s -> s.getClass().getSimpleName() ).collect( Collectors.joining( "," ) );
+  }
+
+  private Pipeline( String spec, Filter[] stages )
+  {
+    this.stages = stages;
+    this.spec   = spec;
+  }
+  
+  
+  /** Parse text spec, throwing IllegalArgumentException if it is not valid */
+  static public Pipeline parse( String spec )
+  {
+    String[] names  = spec.trim().split( "\\s*,\\s*" );
+    
+    if ( names.length > MAX_STAGES )
+      throw new IllegalArgumentException( "At most " + MAX_STAGES + " filter stages: " + spec );
+    
+    Filter[] stages = new Filter[ names.length ];
+    
+    for ( int i=0 ; i < names.length ; i++ )
+      stages[i] = stage( names[i] );
+
+    return new Pipeline( spec.trim(), stages );
+  }
+  
+  static private Filter stage( String text )
+  {
+    String[] p = text.split( ":" );
+    
+    try
+    {
+      switch ( p[0].toLowerCase() )
+      {
+        case "median"  : return new MovingMedian( Integer.parseInt( p[1] ) );
+        case "ema"     : return new Ema         ( Double.parseDouble( p[1] ) );
+        case "deadband": return new Deadband    ( Double.parseDouble( p[1] ) );
+        case "rate"    : return new RateOfChange();
+        case "kalman"  : return new Kalman      ( Double.parseDouble( p[1] ), Double.parseDouble( p[2] ) );
+        default        : throw new IllegalArgumentException( "Unknown filter: " + text );
+      }
+    }
+    catch ( ArrayIndexOutOfBoundsException | NumberFormatException e )
+    {
+      throw new IllegalArgumentException( "Bad filter parameters: " + text, e );
+    }
+  }
+  
+  
+  @Override public double apply( long nanos, double value )
+  {
+    for ( Filter f: stages )
+      value = f.apply( nanos, value );
+
+    return value;
+  }
+
+  @Override public void reset()
+  {
+    for ( Filter f: stages )
+      f.reset();
+  }
+  
+  @Override public String toString()  { return spec; }
+}
@@ -0,0 +1,22 @@
+package com.github.drichm.ev3.lib.filter;
+
+/** Rate of change of value, per second - 0 for the first sample */
+public class RateOfChange implements Filter
+{
+  private double  last;
+  private long    lastNanos;
+  private boolean primed;
+  
+  @Override public double apply( long nanos, double value )
+  {
+    double rate = primed && nanos != lastNanos ? (value - last) * 1e9 / (nanos - lastNanos) : 0;
+
+    last      = value;
+    lastNanos = nanos;
+    primed    = true;
+
+    return rate;
+  }
+
+  @Override public void reset()  { primed = false; }
+}
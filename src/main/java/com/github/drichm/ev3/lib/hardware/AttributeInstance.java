@@ -1,5 +1,7 @@
 package com.github.drichm.ev3.lib.hardware;
 
+import java.nio.file.Path;
+
 import com.github.drichm.ev3.lib.device.Attribute;
 import com.github.drichm.ev3.lib.device.Mode;
 import com.github.drichm.ev3.lib.device.Type;
@@ -7,13 +9,28 @@ import com.github.drichm.ev3.lib.device.Type;
 /** Device Node location */
 public class AttributeInstance extends Attribute
 {
+  /** Node this attribute was listed on, null if not bound to a node */
+  public final transient DeviceNodeInstance node;
+  
+  /** Resolved file location on node, null if not bound to a node */
+  public final transient Path               path;
+  
   public AttributeInstance( String topname )
   {
     this( topname, null );
   }
 
   public AttributeInstance( String topname, String subname )
+  {
+    this( topname, subname, null, null );
+  }
+
+  /** Attribute as listed on node, with its file location resolved once */
+  public AttributeInstance( String topname, String subname, DeviceNodeInstance node, Path path )
   {
     super( topname, subname, (Type) null, (Mode) null );
+    
+    this.node = node;
+    this.path = path;
   }
 }
\ No newline at end of file
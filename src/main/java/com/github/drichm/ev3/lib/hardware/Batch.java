@@ -0,0 +1,115 @@
+package com.github.drichm.ev3.lib.hardware;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable snapshot of a set of attributes read back-to-back from one device node
+ * <p>
+ * Values are held as bytes in one buffer, and only parsed or decoded when asked for
+ * 
+ * @see SysFS#readAll(DeviceNodeInstance, Batch)
+ */
+public class Batch
+{
+  /** Buffer space allowed per attribute, unless told otherwise */
+  static public final int PER_ATTRIBUTE = 128;
+  
+  // ==========================================================================
+
+  /** Attributes read, in order */
+  public final AttributeInstance[] attributes;
+
+  /** Outcome of reading each attribute */
+  public final Result[]            result;
+  
+  /** System.currentTimeMillis() when the batch was read */
+  public long millis;
+
+  /** System.nanoTime() at the start of the first read */
+  public long nanos;
+
+  /** Nanoseconds between the start of the first read and the end of the last */
+  public long skew;
+
+  /** All values, value i at offset[i] for length[i] bytes */
+  final ByteBuffer buffer;
+  final int[]      offset;
+  final int[]      length;
+  
+
+  public Batch( AttributeInstance... attributes )
+  {
+    this( PER_ATTRIBUTE * attributes.length, attributes );
+  }
+
+  public Batch( int capacity, AttributeInstance... attributes )
+  {
+    this( ByteBuffer.allocateDirect( capacity ), attributes );
+  }
+
+  /** Batch reading into given buffer - which batches used one at a time may share */
+  public Batch( ByteBuffer buffer, AttributeInstance... attributes )
+  {
+    this.attributes = attributes;
+    this.result     = new Result[ attributes.length ];
+    this.buffer     = buffer;
+    this.offset     = new int[ attributes.length ];
+    this.length     = new int[ attributes.length ];
+  }
+  
+  
+  // ==========================================================================
+
+  public int size()  { return attributes.length; }
+
+  /** Index of attribute in this batch, -1 if not present */
+  public int indexOf( AttributeInstance attr )
+  {
+    for ( int i=0 ; i < attributes.length ; i++ )
+      if ( attributes[i].equals( attr ) )
+        return i;
+
+    return -1;
+  }
+  
+  
+  /** Value i as trimmed text, null if it was not read */
+  public String text( int i )
+  {
+    if ( !result[i].ok() )
+      return null;
+
+    byte[] bytes = new byte[ length[i] ];
+    
+    buffer.limit( buffer.capacity() );
+
+    for ( int b=0 ; b < bytes.length ; b++ )
+      bytes[b] = buffer.get( offset[i] + b );
+
+    return new String( bytes, SysFS.CHARSET ).trim();
+  }
+
+  /** Parse value i as an integer into holder */
+  public Result readLong( int i, Reading into )
+  {
+    return readFixedPoint( i, 0, false, into );
+  }
+
+  /** Parse value i as a fixed point decimal into holder */
+  public Result readFixedPoint( int i, int decimals, Reading into )
+  {
+    return readFixedPoint( i, decimals, true, into );
+  }
+
+  private Result readFixedPoint( int i, int decimals, boolean fraction, Reading into )
+  {
+    if ( !result[i].ok() )
+      return into.set( result[i], 0 );
+
+    buffer.limit( buffer.capacity() ).position( offset[i] );
+    buffer.limit( offset[i] + length[i] );
+    
+    return SysFS.parse( buffer, decimals, fraction, into );
+  }
+
+}
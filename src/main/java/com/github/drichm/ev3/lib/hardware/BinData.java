@@ -0,0 +1,84 @@
+package com.github.drichm.ev3.lib.hardware;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable holder for all values of a lego-sensor, read in one go from its bin_data attribute
+ * <p>
+ * The format is read from bin_data_format on first use and remembered - call {@link #reset()} after
+ * changing the sensor's mode, as that can change the format.
+ * 
+ * @see SysFS#readBinData(DeviceNodeInstance, BinData)
+ */
+public class BinData
+{
+  /** Most bytes any lego-sensor reports in bin_data */
+  static public final int CAPACITY = 32;
+  
+  // ==========================================================================
+
+  /** Outcome of the last read */
+  public Result    result = Result.UNAVAILABLE;
+
+  /** Format of values, null until known */
+  public BinFormat format;
+  
+  /** Number of values decoded by the last read */
+  public int       count;
+
+  /** Values decoded by the last read, FLOAT values truncated */
+  public final int[]   ints;
+
+  /** Values decoded by the last read, only filled for FLOAT format */
+  public final float[] floats;
+
+  /** Raw bytes read */
+  final ByteBuffer buffer = ByteBuffer.allocateDirect( CAPACITY + 1 );    // + 1 so a full read is not taken as cut short
+  
+  
+  public BinData()
+  {
+    this.ints   = new int  [ CAPACITY ];
+    this.floats = new float[ CAPACITY ];
+  }
+
+  
+  /** Forget format, so it is read again */
+  public void reset()
+  {
+    format = null;
+  }
+
+  public boolean ok()  { return result == Result.OK; }
+
+  /** Value i as a float, whatever the format */
+  public float value( int i )
+  {
+    return format == BinFormat.FLOAT ? floats[i] : ints[i];
+  }
+
+  
+  /** Decode buffer contents into values */
+  Result decode()
+  {
+    int n = buffer.limit() / format.width;
+
+    for ( int i=0 ; i < n ; i++ )
+    {
+      ints[i] = format.intAt( buffer, i * format.width );
+
+      if ( format == BinFormat.FLOAT )
+        floats[i] = format.floatAt( buffer, i * format.width );
+    }
+
+    count  = n;
+    return result = Result.OK;
+  }
+
+  Result fail( Result result )
+  {
+    count = 0;
+    return this.result = result;
+  }
+
+}
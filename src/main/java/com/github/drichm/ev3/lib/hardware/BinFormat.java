@@ -0,0 +1,113 @@
+package com.github.drichm.ev3.lib.hardware;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Formats a lego-sensor reports its raw bin_data in, as named by its bin_data_format attribute
+ * <p>
+ * All formats are little-endian except S16_BE
+ * 
+ * @see http://docs.ev3dev.org/projects/lego-linux-drivers/en/ev3dev-jessie/sensors.html#the-lego-sensor-subsytem
+ */
+public enum BinFormat
+{
+  U8    ( "u8"    , 1 ),
+  S8    ( "s8"    , 1 ),
+  U16   ( "u16"   , 2 ),
+  S16   ( "s16"   , 2 ),
+  S16_BE( "s16_be", 2 ),
+  S32   ( "s32"   , 4 ),
+  FLOAT ( "float" , 4 );
+  
+  
+  //===========================================================================
+
+  /** Name as reported by bin_data_format */
+  public final String format;
+  
+  /** Bytes per value */
+  public final int    width;
+
+  private final byte[] bytes;
+  
+  private BinFormat( String format, int width )
+  {
+    this.format = format;
+    this.width  = width;
+    this.bytes  = format.getBytes( SysFS.CHARSET );
+  }
+  
+  
+  //===========================================================================
+
+  /** Format with given name, null if not known */
+  static public BinFormat from( String format )
+  {
+    for ( BinFormat f: values() )
+      if ( f.format.equals( format ) )
+        return f;
+
+    return null;
+  }
+
+  /** Format named by text from buffer position to limit (ignoring surrounding whitespace), null if not known */
+  static public BinFormat from( ByteBuffer buffer )
+  {
+    int start = buffer.position();
+    int end   = buffer.limit();
+    
+    while ( start < end && buffer.get( start ) <= ' ' )
+      start++;
+    
+    while ( end > start && buffer.get( end-1 ) <= ' ' )
+      end--;
+
+    for ( BinFormat f: values() )
+      if ( f.matches( buffer, start, end ) )
+        return f;
+    
+    return null;
+  }
+  
+  private boolean matches( ByteBuffer buffer, int start, int end )
+  {
+    if ( end - start != bytes.length )
+      return false;
+    
+    for ( int i=0 ; i < bytes.length ; i++ )
+      if ( buffer.get( start + i ) != bytes[i] )
+        return false;
+
+    return true;
+  }
+  
+
+  //===========================================================================
+
+  /** Integer value at buffer index - FLOAT values are truncated */
+  public int intAt( ByteBuffer b, int index )
+  {
+    switch ( this )
+    {
+      case U8    : return b.get( index ) & 0xFF;
+      case S8    : return b.get( index );
+      case U16   : return (b.get( index ) & 0xFF) | (b.get( index+1 ) & 0xFF) << 8;
+      case S16   : return (short) ((b.get( index ) & 0xFF) | (b.get( index+1 ) & 0xFF) << 8);
+      case S16_BE: return (short) ((b.get( index ) & 0xFF) << 8 | (b.get( index+1 ) & 0xFF));
+      case S32   : return (b.get( index   ) & 0xFF)       | (b.get( index+1 ) & 0xFF) <<  8
+                        | (b.get( index+2 ) & 0xFF) << 16 | (b.get( index+3 ) & 0xFF) << 24;
+      case FLOAT : return (int) floatAt( b, index );
+      default    : throw new IllegalStateException( name() );
+    }
+  }
+
+  /** Value at buffer index as a float */
+  public float floatAt( ByteBuffer b, int index )
+  {
+    if ( this == FLOAT )
+      return Float.intBitsToFloat( S32.intAt( b, index ) );
+    else
+      return intAt( b, index );
+  }
+
+}
@@ -0,0 +1,117 @@
+package com.github.drichm.ev3.lib.hardware;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable set of attribute writes across several motors, ending in one command per motor
+ * <p>
+ * Setpoint writes all go first, then the commands are written back-to-back, so motors started together
+ * start within microseconds of each other. Not thread-safe - one thread per batch.
+ * 
+ * @see SysFS#writeAll(CommandBatch)
+ */
+public class CommandBatch
+{
+  // ==========================================================================
+
+  /** One attribute write */
+  static public class Write
+  {
+    public final DeviceNodeInstance node;
+    public final AttributeInstance  attr;
+    public final String             value;
+    
+    /** true for a command write, which goes out after all setpoint writes */
+    public final boolean            command;
+    
+    /** Outcome of last write */
+    public Result                   result;
+    
+    /** Nanoseconds after the first command write that this command write started, 0 for setpoints */
+    public long                     offset;
+    
+    Write( DeviceNodeInstance node, AttributeInstance attr, String value, boolean command )
+    {
+      this.node    = node;
+      this.attr    = attr;
+      this.value   = value;
+      this.command = command;
+    }
+  }
+  
+  
+  // ==========================================================================
+
+  /** Writes, in the order added */
+  public final List<Write> writes = new ArrayList<>();
+  
+  /** System.currentTimeMillis() when the commands were written */
+  public long millis;
+  
+  /** Nanoseconds between the start of the first command write and the start of the last */
+  public long skew;
+  
+  /** All values, built on first write - write i at offset[i] for length[i] bytes, with its open handle */
+  ByteBuffer    buffer;
+  int[]         offset;
+  int[]         length;
+  FileChannel[] channel;
+  
+  
+  /** Add setpoint (or any other attribute) write */
+  public CommandBatch set( DeviceNodeInstance node, AttributeInstance attr, String value )
+  {
+    return add( new Write( node, attr, value, false ) );
+  }
+
+  public CommandBatch set( DeviceNodeInstance node, AttributeInstance attr, long value )
+  {
+    return set( node, attr, Long.toString( value ) );
+  }
+
+  /** Add a motor's command, written after all setpoints */
+  public CommandBatch command( DeviceNodeInstance node, String command )
+  {
+    return add( new Write( node, Tacho.COMMAND, command, true ) );
+  }
+
+  
+  private CommandBatch add( Write write )
+  {
+    writes.add( write );
+    buffer = null;
+
+    return this;
+  }
+
+  /** Encode all values into buffer, once */
+  void encode()
+  {
+    if ( buffer != null )
+      return;
+    
+    int size = writes.size();
+    
+    byte[][] bytes = new byte[ size ][];
+    int      total = 0;
+    
+    for ( int i=0 ; i < size ; i++ )
+      total += (bytes[i] = writes.get( i ).value.getBytes( SysFS.CHARSET )).length;
+    
+    buffer  = ByteBuffer.allocateDirect( Math.max( total, 1 ) );
+    offset  = new int[ size ];
+    length  = new int[ size ];
+    channel = new FileChannel[ size ];
+    
+    for ( int i=0 ; i < size ; i++ )
+    {
+      offset[i] = buffer.position();
+      length[i] = bytes[i].length;
+      buffer.put( bytes[i] );
+    }
+  }
+
+}
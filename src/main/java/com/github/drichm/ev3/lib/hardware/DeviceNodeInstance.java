@@ -16,4 +16,16 @@ public class DeviceNodeInstance extends DeviceNode
   }
   
   
+  /** Node for "type/subtype" path, null if not of that form */
+  static public DeviceNodeInstance parse( String subpath )
+  {
+    int slash = subpath == null ? -1 : subpath.indexOf( '/' );
+    
+    if ( slash <= 0 || slash == subpath.length() - 1 || subpath.indexOf( '/', slash + 1 ) >= 0 )
+      return null;
+    else
+      return new DeviceNodeInstance( subpath.substring( 0, slash ), subpath.substring( slash + 1 ) );
+  }
+  
+  
 }
\ No newline at end of file
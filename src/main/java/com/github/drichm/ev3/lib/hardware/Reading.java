@@ -0,0 +1,40 @@
+package com.github.drichm.ev3.lib.hardware;
+
+/**
+ * Reusable holder for the result of one attribute read
+ * <p>
+ * Keep one per polling loop and pass it to the SysFS primitive readers, so reading allocates nothing
+ */
+public class Reading
+{
+  /** Outcome of the last read into this holder */
+  public Result result = Result.UNAVAILABLE;
+  
+  /** Numeric value of the last primitive read, 0 unless result is OK */
+  public long   value;
+
+  /** Text of the last text read, null unless result is OK */
+  public String text;
+
+  /** Bytes of the last raw read, null unless result is OK */
+  public byte[] bytes;
+
+  
+  public boolean ok()  { return result == Result.OK; }
+
+  /** Set outcome, returning it */
+  Result set( Result result, long value )
+  {
+    this.result = result;
+    this.value  = result == Result.OK ? value : 0;
+    this.text   = null;
+    this.bytes  = null;
+    
+    return result;
+  }
+
+  @Override public String toString()
+  {
+    return result != Result.OK ? result.name() : text != null ? text : Long.toString( value );
+  }
+}
@@ -0,0 +1,29 @@
+package com.github.drichm.ev3.lib.hardware;
+
+/**
+ * Outcome of a SysFS read or write, returned as a code rather than thrown
+ * <p>
+ * Failures are reported this way so that an unplugged device does not cost a stack trace per access
+ */
+public enum Result
+{
+  /** Value read or written */
+  OK,
+
+  /** Attribute does not exist - device unplugged, or not supported by its driver */
+  UNAVAILABLE,
+
+  /** Attribute may not be read or written this way */
+  DENIED,
+
+  /** Any other I/O failure, including the driver rejecting a written value */
+  FAILED,
+
+  /** Value is not a number of the requested form */
+  FORMAT,
+
+  /** Number does not fit the requested primitive */
+  RANGE;
+
+  public boolean ok()  { return this == OK; }
+}
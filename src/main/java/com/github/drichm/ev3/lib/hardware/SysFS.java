@@ -2,19 +2,31 @@ package com.github.drichm.ev3.lib.hardware;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 /**
  * Low level file access to EV3DEV sysfs file system interface to EV3 ports
- * 
+ * <p>
+ * Nothing here throws or returns an exception: every read and write reports a {@link Result}.
+ * Attributes that fail to open are remembered for a short while, so polling an unplugged
+ * sensor costs no more than polling a working one.
+ *
  * @see https://ev3dev-lang.readthedocs.io/en/latest/
  * @see http://docs.ev3dev.org/projects/lego-linux-drivers/en/ev3dev-jessie/
  * @see https://github.com/ev3dev-lang-java/ev3dev-lang-java
@@ -23,6 +35,16 @@ public class SysFS
 {
   static public final Charset CHARSET = StandardCharsets.UTF_8;
 
+  /** Largest attribute value sysfs will return - one page */
+  static public final int     PAGE    = 4096;
+
+  /** How long an attribute that failed to open is reported as failed before trying again */
+  static public final long    RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos( 250 );
+
+  /** lego-sensor attributes read by {@link #readBinData(DeviceNodeInstance, BinData)} */
+  static public final AttributeInstance BIN_DATA        = new AttributeInstance( "bin_data" );
+  static public final AttributeInstance BIN_DATA_FORMAT = new AttributeInstance( "bin_data_format" );
+
   // ==========================================================================
 
   /** SysFS root location */
@@ -48,10 +70,13 @@ public class SysFS
 
   public Path path( DeviceNodeInstance dn, AttributeInstance attr )
   {
-    return root.resolve( dn.name() ).resolve( attr.name() );
+    if ( attr.path != null && dn.equals( attr.node ) )
+      return attr.path;
+    else
+      return root.resolve( dn.name() ).resolve( attr.name() );
   }
 
-  
+
   /** Replace any number at the end of 'name' with given replacement string */
   static public String replaceN( String name, String replacement )
   {
@@ -69,109 +94,732 @@ public class SysFS
     else
       return name.substring( 0, n ) + replacement;
   }
-  
-  
+
+
   // ==========================================================================
   // Writing
 
-  public Throwable write( DeviceNodeInstance dn, AttributeInstance attr, String text )
+  public Result write( DeviceNodeInstance dn, AttributeInstance attr, String text )
+  {
+    return writeBuffer( dn, attr, CHARSET.encode( text == null ? "" : text ) );
+  }
+
+  /** Write integer attribute, formatting it without allocation */
+  public Result write( DeviceNodeInstance dn, AttributeInstance attr, long value )
+  {
+    ByteBuffer buffer = BUFFER.get();
+    
+    buffer.clear();
+    format( value, buffer );
+    buffer.flip();
+    
+    return writeBuffer( dn, attr, buffer );
+  }
+
+  /** Write value already encoded in buffer, from its position to its limit - position is left at the limit */
+  public Result write( DeviceNodeInstance dn, AttributeInstance attr, ByteBuffer value )
   {
+    return writeBuffer( dn, attr, value );
+  }
+
+  
+  /** Write buffer contents to attribute with a single positional write at offset 0, through a handle held open */
+  protected Result writeBuffer( DeviceNodeInstance dn, AttributeInstance attr, ByteBuffer buffer )
+  {
+    Handle      handle = handles( dn, attr ).write;
+    FileChannel fc     = handle.open( path( dn, attr ) );
+
+    if ( fc == null )
+      return handle.failed;
+
     try
     {
-      Files.writeString( path( dn, attr ), text == null ? "" : text, CHARSET, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
-      return null;
+      fc.write( buffer, 0 );
+      return Result.OK;
     }
-    catch ( Throwable t )
+    catch ( IOException e )
     {
-      return t;
+      // the driver rejecting a value shows up here too - reopening costs little
+      handle.close( fc );
+      return failure( e );
+    }
+  }
+
+  
+  /** Append value as ASCII decimal digits at buffer's position */
+  static void format( long value, ByteBuffer buffer )
+  {
+    if ( value == Long.MIN_VALUE )
+    {
+      buffer.put( Long.toString( value ).getBytes( CHARSET ) );
+      return;
+    }
+    
+    if ( value < 0 )
+    {
+      buffer.put( (byte) '-' );
+      value = -value;
+    }
+    
+    int start = buffer.position();
+    
+    do
+    {
+      buffer.put( (byte) ('0' + value % 10) );
+      value /= 10;
+    }
+    while ( value > 0 );
+
+    // digits went in backwards
+    for ( int i = start, j = buffer.position() - 1 ; i < j ; i++, j-- )
+    {
+      byte b = buffer.get( i );
+      buffer.put( i, buffer.get( j ) );
+      buffer.put( j, b );
     }
   }
 
 
   // ==========================================================================
-  // Reading
+  // Reading primitives, parsed straight out of the read buffer
 
-  public Integer readInteger( DeviceNodeInstance dn, AttributeInstance attr )
+  /** Read integer attribute into holder */
+  public Result readInt( DeviceNodeInstance dn, AttributeInstance attr, Reading into )
   {
-    try
+    Result result = readLong( dn, attr, into );
+
+    if ( result.ok() && (into.value < Integer.MIN_VALUE || into.value > Integer.MAX_VALUE) )
+      return into.set( Result.RANGE, 0 );
+    else
+      return result;
+  }
+
+  /** Read integer attribute into holder */
+  public Result readLong( DeviceNodeInstance dn, AttributeInstance attr, Reading into )
+  {
+    return readNumber( dn, attr, 0, false, into );
+  }
+
+  /**
+   * Read decimal attribute into holder as a fixed point integer, e.g. "12.345" at 2 decimals reads as 1234
+   * <p>
+   * Digits beyond the given decimals are truncated
+   */
+  public Result readFixedPoint( DeviceNodeInstance dn, AttributeInstance attr, int decimals, Reading into )
+  {
+    return readNumber( dn, attr, decimals, true, into );
+  }
+
+
+  private Result readNumber( DeviceNodeInstance dn, AttributeInstance attr, int decimals, boolean fraction, Reading into )
+  {
+    ByteBuffer buffer = BUFFER.get();
+    Result     result = readBuffer( dn, attr, buffer );
+
+    if ( !result.ok() )
+      return into.set( result, 0 );
+    else
+      return parse( buffer, decimals, fraction, into );
+  }
+
+
+  /**
+   * Parse ASCII number from buffer position to limit, ignoring surrounding whitespace
+   *
+   * @param decimals fixed point decimal places to scale value by
+   * @param fraction true to allow a fractional part, false for an integer
+   */
+  static Result parse( ByteBuffer buffer, int decimals, boolean fraction, Reading into )
+  {
+    int i   = buffer.position();
+    int end = buffer.limit();
+
+    while ( i < end && buffer.get( i ) <= ' ' )
+      i++;
+
+    while ( end > i && buffer.get( end-1 ) <= ' ' )
+      end--;
+
+    boolean negative = false;
+
+    if ( i < end && (buffer.get( i ) == '-' || buffer.get( i ) == '+') )
+      negative = buffer.get( i++ ) == '-';
+
+    long    value  = 0;
+    int     digits = 0;
+    int     places = -1;    // digits seen after '.', -1 if none
+
+    for ( ; i < end ; i++ )
+    {
+      byte b = buffer.get( i );
+
+      if ( b == '.' && fraction && places < 0 )
+        places = 0;
+      else
+      if ( b < '0' || b > '9' )
+        return into.set( Result.FORMAT, 0 );
+      else
+      if ( places >= decimals )
+        digits++;           // truncated
+      else
+      {
+        if ( value > (Long.MAX_VALUE - (b - '0')) / 10 )
+          return into.set( Result.RANGE, 0 );
+
+        value = value * 10 + (b - '0');
+        digits++;
+
+        if ( places >= 0 )
+          places++;
+      }
+    }
+
+    if ( digits == 0 )
+      return into.set( Result.FORMAT, 0 );
+
+    // scale up to the requested decimal places
+    for ( int p = Math.max( places, 0 ) ; p < decimals ; p++ )
+      if ( value > Long.MAX_VALUE / 10 )
+        return into.set( Result.RANGE, 0 );
+      else
+        value *= 10;
+
+    return into.set( Result.OK, negative ? -value : value );
+  }
+
+
+  // ==========================================================================
+  // Reading text
+
+  /** Read attribute as trimmed text into holder */
+  public Result read( DeviceNodeInstance dn, AttributeInstance attr, Reading into )
+  {
+    ByteBuffer buffer = BUFFER.get();
+    Result     result = readBuffer( dn, attr, buffer );
+
+    into.set( result, 0 );
+
+    if ( result.ok() )
+      into.text = text( buffer );
+
+    return result;
+  }
+
+  /** Read attribute as trimmed text, null if it could not be read */
+  public String read( DeviceNodeInstance dn, AttributeInstance attr )
+  {
+    ByteBuffer buffer = BUFFER.get();
+
+    return readBuffer( dn, attr, buffer ).ok() ? text( buffer ) : null;
+  }
+
+
+  /**
+   * Raw low-level read of any file under root, setting both bytes and trimmed text in holder
+   * <p>
+   * Opens the file each time - use for occasional access only
+   */
+  public Result read( String path, Reading into )
+  {
+    ByteBuffer buffer = BUFFER.get();
+
+    buffer.clear();
+
+    try ( FileChannel fc = FileChannel.open( root.resolve( path ), StandardOpenOption.READ ) )
     {
-      return Integer.valueOf( read( dn, attr ) );
+      fc.read( buffer, 0 );
     }
-    catch ( Throwable t )
+    catch ( IOException e )
     {
-      return null;
+      return into.set( failure( e ), 0 );
     }
+
+    buffer.flip();
+
+    into.set( Result.OK, 0 );
+    into.bytes = new byte[ buffer.remaining() ];
+
+    buffer.get( into.bytes );
+    into.text  = new String( into.bytes, CHARSET ).trim();
+
+    return Result.OK;
+  }
+
+
+  /** Decode buffer as trimmed text */
+  static private String text( ByteBuffer buffer )
+  {
+    byte[] bytes = new byte[ buffer.remaining() ];
+
+    buffer.get( bytes );
+
+    return new String( bytes, CHARSET ).trim();
+  }
+
+
+  /**
+   * Read attribute into buffer with a single positional read at offset 0
+   * <p>
+   * sysfs regenerates the whole value on every read from offset 0, so one read is enough
+   *
+   * @param buffer cleared, read into and flipped ready for reading
+   */
+  protected Result readBuffer( DeviceNodeInstance dn, AttributeInstance attr, ByteBuffer buffer )
+  {
+    buffer.clear();
+
+    Result result = readAppend( dn, attr, buffer );
+
+    buffer.flip();
+    return result;
   }
 
-  public Double readDouble( DeviceNodeInstance dn, AttributeInstance attr )
+  /**
+   * Read attribute with a single positional read at offset 0, appending it at buffer's position
+   * <p>
+   * A read that fills the buffer may have been cut short, so is RANGE and appends nothing
+   */
+  Result readAppend( DeviceNodeInstance dn, AttributeInstance attr, ByteBuffer buffer )
   {
+    Handle      handle = handles( dn, attr ).read;
+    FileChannel fc     = handle.open( path( dn, attr ) );
+
+    if ( fc == null )
+      return handle.failed;
+
+    int start = buffer.position();
+
     try
     {
-      return Double.valueOf( read( dn, attr ) );
+      if ( !buffer.hasRemaining() )
+        return Result.RANGE;
+
+      fc.read( buffer, 0 );
+      
+      if ( buffer.hasRemaining() )
+        return Result.OK;
+      
+      buffer.position( start );
+      return Result.RANGE;
     }
-    catch ( Throwable t )
+    catch ( IOException e )
     {
-      return null;
+      // handle has gone stale (device unplugged?) - reopen on next read
+      handle.close( fc );
+      buffer.position( start );
+      return failure( e );
     }
   }
 
-  public String read( DeviceNodeInstance dn, AttributeInstance attr )
+
+  // ==========================================================================
+  // Reading in batches
+
+  /** Read a set of attributes back-to-back into a new batch */
+  public Batch readAll( DeviceNodeInstance dn, AttributeInstance... attrs )
+  {
+    return readAll( dn, new Batch( attrs ) );
+  }
+
+  /**
+   * Read all of batch's attributes back-to-back into its buffer, recording when and over how long
+   * 
+   * @return given batch
+   */
+  public Batch readAll( DeviceNodeInstance dn, Batch into )
   {
+    ByteBuffer buffer = into.buffer;
+
+    buffer.clear();
+    
+    into.millis = System.currentTimeMillis();
+    into.nanos  = System.nanoTime();
+
+    for ( int i=0 ; i < into.attributes.length ; i++ )
+    {
+      into.offset[i] = buffer.position();
+      into.result[i] = readAppend( dn, into.attributes[i], buffer );
+      into.length[i] = buffer.position() - into.offset[i];
+    }
+
+    into.skew = System.nanoTime() - into.nanos;
+
+    return into;
+  }
+
+
+  // ==========================================================================
+  // Writing in batches
+
+  /**
+   * Write all of batch's setpoints, then all of its commands back-to-back, recording the skew between commands
+   * <p>
+   * Every handle is opened before anything is written. A motor whose setpoint could not be written is not
+   * sent its command - its command's result is the failed setpoint's.
+   * 
+   * @return given batch
+   */
+  public CommandBatch writeAll( CommandBatch batch )
+  {
+    batch.encode();
+
+    List<CommandBatch.Write> writes = batch.writes;
+    
+    for ( int i=0 ; i < writes.size() ; i++ )
+    {
+      CommandBatch.Write w      = writes.get( i );
+      Handle             handle = handles( w.node, w.attr ).write;
+
+      batch.channel[i] = handle.open( path( w.node, w.attr ) );
+      w.result         = batch.channel[i] == null ? handle.failed : Result.OK;
+      w.offset         = 0;
+    }
+    
+    for ( int i=0 ; i < writes.size() ; i++ )
+      if ( !writes.get( i ).command && writes.get( i ).result.ok() )
+        writeAt( batch, i );
+    
+    // skip commands to motors whose setpoints failed
+    for ( CommandBatch.Write w: writes )
+      if ( !w.command && !w.result.ok() )
+        for ( CommandBatch.Write c: writes )
+          if ( c.command && c.node.equals( w.node ) && c.result.ok() )
+            c.result = w.result;
+
+    long    first = 0, last = 0;
+    boolean any   = false;
+    
+    batch.millis = System.currentTimeMillis();
+    
+    for ( int i=0 ; i < writes.size() ; i++ )
+    {
+      CommandBatch.Write w = writes.get( i );
+
+      if ( w.command && w.result.ok() )
+      {
+        last = System.nanoTime();
+
+        if ( !any )
+          first = last;
+
+        any      = true;
+        w.offset = last - first;
+        writeAt( batch, i );
+      }
+    }
+    
+    batch.skew = last - first;
+
+    return batch;
+  }
+  
+  /** Write value i of batch through its already open handle */
+  private void writeAt( CommandBatch batch, int i )
+  {
+    CommandBatch.Write w = batch.writes.get( i );
+    ByteBuffer         b = batch.buffer;
+    
+    b.limit( batch.offset[i] + batch.length[i] ).position( batch.offset[i] );
+    
     try
     {
-      return Files.readString( path( dn, attr ), CHARSET ).trim();
+      batch.channel[i].write( b, 0 );
     }
-    catch ( Throwable t )
+    catch ( IOException e )
     {
-      return null;
+      handles( w.node, w.attr ).write.close( batch.channel[i] );
+      w.result = failure( e );
     }
+    
+    b.limit( b.capacity() );
   }
 
+  
+  // ==========================================================================
+  // Reading binary data
 
-  /** Raw low-level string reader, throws any file system exception  */
-  public String readString( String path ) throws IOException
+  /**
+   * Read all of a lego-sensor's current values from bin_data in one read, decoding them per bin_data_format
+   * <p>
+   * bin_data_format is only read if the holder does not already know the format
+   */
+  public Result readBinData( DeviceNodeInstance dn, BinData into )
   {
-    return Files.readString( root.resolve( path ) ).trim();
+    ByteBuffer buffer = into.buffer;
+
+    if ( into.format == null )
+    {
+      Result result = readBuffer( dn, BIN_DATA_FORMAT, buffer );
+
+      if ( !result.ok() )
+        return into.fail( result );
+
+      into.format = BinFormat.from( buffer );
+
+      if ( into.format == null )
+        return into.fail( Result.FORMAT );
+    }
+    
+    Result result = readBuffer( dn, BIN_DATA, buffer );
+
+    return result.ok() ? into.decode() : into.fail( result );
   }
 
-  /** Raw low-level bytes reader, throws any file system exception  */
-  public byte[] readBytes( String path ) throws IOException
+
+  /** Map I/O exception to a result code */
+  static Result failure( IOException e )
   {
-    return Files.readAllBytes( root.resolve( path ) );
+    if ( e instanceof NoSuchFileException )
+      return Result.UNAVAILABLE;
+    else
+    if ( e instanceof AccessDeniedException )
+      return Result.DENIED;
+    else
+      return Result.FAILED;
   }
 
-  
+
+  // ==========================================================================
+  // Open file handles
+
+  /** Per-thread read and write buffer */
+  static private final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial( () -> ByteBuffer.allocateDirect( PAGE ) );
+
+  /** node:attributes map of attribute directory listings */
+  private final Map<DeviceNodeInstance,AttributeInstance[]> listings = new ConcurrentHashMap<>();
+
+  static private final AttributeInstance[] NO_ATTRIBUTES = {};
+
+  /** node:(attribute:handles) map of attribute files held open */
+  private final Map<DeviceNodeInstance,Map<AttributeInstance,Handles>> handles = new ConcurrentHashMap<>();
+
+
+  /** Open file handle, or recent failure to open, for one attribute in one direction */
+  static private class Handle
+  {
+    /** How to open - null never to */
+    private final OpenOption[]   options;
+    private volatile FileChannel fc;
+
+    /** Last failure to open, and System.nanoTime() it happened */
+    private volatile Result      failed = Result.UNAVAILABLE;
+    private volatile long        failedAt;
+    private volatile boolean     failing;
+
+    Handle( OpenOption... options )
+    {
+      this.options = options;
+    }
+    
+    /** Open handle, reusing any handle already open - null if it failed to open recently, or never opens */
+    FileChannel open( Path path )
+    {
+      FileChannel open = fc;
+
+      if ( open != null || options == null )
+        return open;
+
+      synchronized ( this )
+      {
+        if ( fc != null )
+          return fc;
+
+        if ( failing && System.nanoTime() - failedAt < RETRY_NANOS )
+          return null;
+
+        try
+        {
+          fc      = FileChannel.open( path, options );
+          failing = false;
+        }
+        catch ( IOException e )
+        {
+          failed   = failure( e );
+          failedAt = System.nanoTime();
+          failing  = true;
+        }
+
+        return fc;
+      }
+    }
+
+    /** Close given handle, if still the open one */
+    synchronized void close( FileChannel open )
+    {
+      if ( fc == open )
+        fc = null;
+
+      SysFS.close( open );
+    }
+
+    synchronized void close()
+    {
+      if ( fc != null )
+        SysFS.close( fc );
+
+      fc = null;
+    }
+  }
+
+  /** Read and write handles for one attribute */
+  static private class Handles
+  {
+    final Handle read;
+    final Handle write;
+    
+    Handles()
+    {
+      this( new Handle( StandardOpenOption.READ ), new Handle( StandardOpenOption.CREATE, StandardOpenOption.WRITE ) );
+    }
+    
+    Handles( Handle read, Handle write )
+    {
+      this.read  = read;
+      this.write = write;
+    }
+    
+    void close()
+    {
+      read .close();
+      write.close();
+    }
+  }
+
+
+  /** Handles of attributes not listed on their node */
+  static private final Handles UNLISTED = new Handles( new Handle( (OpenOption[]) null ), new Handle( (OpenOption[]) null ) );
+
+  /**
+   * Handles for attribute of node - kept only for attributes listed on the node, as names may come from URLs and
+   * entries are only dropped when the node is closed
+   */
+  private Handles handles( DeviceNodeInstance dn, AttributeInstance attr )
+  {
+    Map<AttributeInstance,Handles> open = handles.get( dn );
+    Handles                        h    = open == null ? null : open.get( attr );
+
+    if ( h != null )
+      return h;
+    
+    if ( attribute( dn, attr.name() ) == null )
+      return UNLISTED;
+
+    if ( open == null )
+      open = handles.computeIfAbsent( dn, k -> new ConcurrentHashMap<>() );
+
+    return open.computeIfAbsent( attr, k -> new Handles() );
+  }
+
+
+  /** Close all handles held open, and forget the attributes listed, for device node - call when the device is removed */
+  public void close( DeviceNodeInstance dn )
+  {
+    listings.remove( dn );
+    
+    Map<AttributeInstance,Handles> open = handles.remove( dn );
+
+    if ( open != null )
+      open.values().forEach( Handles::close );
+  }
+
+  static private void close( FileChannel fc )
+  {
+    try
+    {
+      fc.close();
+    }
+    catch ( IOException ignored )
+    { // nothing useful to do
+    }
+  }
+
+
   // ==========================================================================
   // Scanning
-  
+
   /** All Device Nodes currently available */
   public Stream<DeviceNodeInstance> nodes( Set<String> scannable )
   {
-    return Arrays.stream ( root.toFile().listFiles() )
+    return list ( root.toFile() )
                  .filter ( File::isDirectory )
                  .filter ( f -> scannable.contains( f.getName() ) )
-                 .map    ( f -> Arrays.stream( f.listFiles() )
-                                                .filter( File::isDirectory )
-                                                .map( s -> new DeviceNodeInstance( f.getName(), s.getName() ) ) 
+                 .map    ( f -> list( f ).filter( File::isDirectory )
+                                         .map( s -> new DeviceNodeInstance( f.getName(), s.getName() ) )
                          )
                  .flatMap( s -> s );
   }
 
-  /** Attributes currently visible for Device Node */
-  public Stream<AttributeInstance> attributes( DeviceNodeInstance dn )
+  /**
+   * Cheap fingerprint of the device nodes in given classes, which changes when a node is added or removed
+   * <p>
+   * Directory modification times are used, but sysfs does not reliably update them on hot-plug, so the
+   * node names are folded in too. Costs a stat and a name listing per class, and no objects per node.
+   */
+  public long stamp( Set<String> classes )
   {
-    try
-    {
-      return Arrays.stream ( path( dn ).toFile().listFiles() )
-                   .map    ( f -> f.isDirectory() 
-                                   ? Arrays.stream( f.listFiles() ).map( s -> new AttributeInstance( f.getName(), s.getName() ) )
-                                   : Stream.of( new AttributeInstance( f.getName() ) ) )
-                   .flatMap( s -> s );
-    }
-    catch ( Throwable t )
+    long stamp = 1;
+
+    for ( String c: classes )
     {
-      return null;
+      File     dir   = root.resolve( c ).toFile();
+      String[] names = dir.list();
+      
+      stamp = 31 * stamp + dir.lastModified();
+
+      if ( names != null )
+        for ( String name: names )
+          stamp += name.hashCode();    // order independent
     }
+
+    return stamp;
+  }
+
+  /**
+   * Attributes of Device Node, sorted by name - none if the node is not available
+   * <p>
+   * A driver's attributes do not change while its device stays plugged in, so the node's directory is
+   * listed once and the same canonical instances, with their paths resolved, returned until the node is closed.
+   * Callers must not modify the returned array.
+   */
+  public AttributeInstance[] attributes( DeviceNodeInstance dn )
+  {
+    // listed and stored atomically, so a close() racing with this cannot be undone by a stale put
+    AttributeInstance[] listed = listings.computeIfAbsent( dn, n -> { AttributeInstance[] l = list( n ); return l.length > 0 ? l : null; } );
+
+    return listed != null ? listed : NO_ATTRIBUTES;
+  }
+
+  /** Canonical instance of named attribute of Device Node, null if the node has no such attribute */
+  public AttributeInstance attribute( DeviceNodeInstance dn, String name )
+  {
+    for ( AttributeInstance a: attributes( dn ) )
+      if ( a.name().equals( name ) )
+        return a;
+
+    return null;
+  }
+
+
+  /** List attributes currently visible for Device Node */
+  private AttributeInstance[] list( DeviceNodeInstance dn )
+  {
+    Path node = path( dn );
+
+    return list ( node.toFile() )
+                 .map    ( f -> f.isDirectory()
+                                 ? list( f ).map( s -> new AttributeInstance( f.getName(), s.getName(), dn, node.resolve( f.getName() ).resolve( s.getName() ) ) )
+                                 : Stream.of( new AttributeInstance( f.getName(), null, dn, node.resolve( f.getName() ) ) ) )
+                 .flatMap( s -> s )
+                 .sorted ()
+                 .toArray( AttributeInstance[]::new );
+  }
+
+  /** Directory contents, empty if not a readable directory */
+  static private Stream<File> list( File dir )
+  {
+    File[] files = dir.listFiles();
+
+    return files == null ? Stream.empty() : Arrays.stream( files );
   }
 
 } // end of class SysFS
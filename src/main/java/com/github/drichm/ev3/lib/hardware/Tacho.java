@@ -0,0 +1,42 @@
+package com.github.drichm.ev3.lib.hardware;
+
+/**
+ * tacho-motor attributes and commands used to drive motors
+ * 
+ * @see http://docs.ev3dev.org/projects/lego-linux-drivers/en/ev3dev-jessie/motors.html#tacho-motor-subsystem
+ */
+public class Tacho
+{
+  static public final String            CLASS         = "tacho-motor";
+
+  static public final AttributeInstance COMMAND       = new AttributeInstance( "command" );
+  static public final AttributeInstance COUNT_PER_ROT = new AttributeInstance( "count_per_rot" );
+  static public final AttributeInstance DUTY_CYCLE_SP = new AttributeInstance( "duty_cycle_sp" );
+  static public final AttributeInstance MAX_SPEED     = new AttributeInstance( "max_speed" );
+  static public final AttributeInstance POSITION      = new AttributeInstance( "position" );
+  static public final AttributeInstance POSITION_SP   = new AttributeInstance( "position_sp" );
+  static public final AttributeInstance SPEED         = new AttributeInstance( "speed" );
+  static public final AttributeInstance SPEED_SP      = new AttributeInstance( "speed_sp" );
+  static public final AttributeInstance STATE         = new AttributeInstance( "state" );
+  static public final AttributeInstance TIME_SP       = new AttributeInstance( "time_sp" );
+
+  static public final String            RUN_DIRECT     = "run-direct";
+  static public final String            RUN_FOREVER    = "run-forever";
+  static public final String            RUN_TO_ABS_POS = "run-to-abs-pos";
+  static public final String            RUN_TO_REL_POS = "run-to-rel-pos";
+  static public final String            RUN_TIMED      = "run-timed";
+  static public final String            STOP           = "stop";
+  static public final String            RESET          = "reset";
+  
+  
+  /** Motor node for "motorN" or "tacho-motor/motorN", null if neither */
+  static public DeviceNodeInstance motor( String name )
+  {
+    if ( name == null || name.isBlank() )
+      return null;
+
+    DeviceNodeInstance node = DeviceNodeInstance.parse( name.contains( "/" ) ? name : CLASS + "/" + name );
+    
+    return node != null && node.type.equals( CLASS ) ? node : null;
+  }
+}
@@ -0,0 +1,254 @@
+package com.github.drichm.ev3.lib.hardware;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drichm.ev3.lib.device.Volatility;
+
+/**
+ * Attribute value cache in front of SysFS
+ * <p>
+ * Values of {@link Volatility#fixed} attributes are read once, {@link Volatility#slow} ones are read once and
+ * forgotten whenever any attribute of the same device is written through this cache, and {@link Volatility#live}
+ * ones are always read from sysfs. Writes made other than through this cache are not seen.
+ */
+public class ValueCache
+{
+  //===========================================================================
+
+  /** One cached value - text, its bytes, and number if it parsed as one */
+  static private class Entry
+  {
+    final Volatility volatility;
+    final String     text;
+    final byte[]     bytes;
+    final Result     parsed;
+    final long       value;
+    
+    Entry( Volatility volatility, String text, byte[] bytes, Result parsed, long value )
+    {
+      this.volatility = volatility;
+      this.text       = text;
+      this.bytes      = bytes;
+      this.parsed     = parsed;
+      this.value      = value;
+    }
+  }
+  
+  /** Values cached for one device node */
+  static private class Node
+  {
+    /** attribute:value map */
+    final Map<AttributeInstance,Entry> entries    = new ConcurrentHashMap<>();
+    
+    /** Incremented by each invalidate, so a read that overlaps one is not kept */
+    final AtomicLong                   generation = new AtomicLong();
+  }
+  
+  
+  //===========================================================================
+
+  public final SysFS sysfs;
+
+  /** node:values map */
+  private final Map<DeviceNodeInstance,Node> values = new ConcurrentHashMap<>();
+  
+  
+  public ValueCache( SysFS sysfs )
+  {
+    this.sysfs = sysfs;
+  }
+  
+  
+  //===========================================================================
+  // Reading
+
+  /** Read attribute as trimmed text, null if it could not be read */
+  public String read( DeviceNodeInstance dn, AttributeInstance attr )
+  {
+    Entry e = entry( dn, attr );
+    
+    return e != null ? e.text : sysfs.read( dn, attr );
+  }
+
+  /** Read attribute as trimmed text into holder */
+  public Result read( DeviceNodeInstance dn, AttributeInstance attr, Reading into )
+  {
+    Entry e = entry( dn, attr );
+    
+    if ( e == null )
+      return sysfs.read( dn, attr, into );
+    
+    into.set( Result.OK, 0 );
+    into.text = e.text;
+    return Result.OK;
+  }
+
+  /** Read integer attribute into holder */
+  public Result readLong( DeviceNodeInstance dn, AttributeInstance attr, Reading into )
+  {
+    Entry e = entry( dn, attr );
+    
+    return e != null ? into.set( e.parsed, e.value ) : sysfs.readLong( dn, attr, into );
+  }
+
+  /** Read integer attribute into holder */
+  public Result readInt( DeviceNodeInstance dn, AttributeInstance attr, Reading into )
+  {
+    Entry e = entry( dn, attr );
+    
+    if ( e == null )
+      return sysfs.readInt( dn, attr, into );
+    else
+    if ( e.parsed.ok() && (e.value < Integer.MIN_VALUE || e.value > Integer.MAX_VALUE) )
+      return into.set( Result.RANGE, 0 );
+    else
+      return into.set( e.parsed, e.value );
+  }
+
+
+  /**
+   * Read file at "type/subtype/attribute" under root, setting both bytes and trimmed text in holder
+   * <p>
+   * Cacheable attributes are served from the cache, their bytes being those of the trimmed text.
+   * Anything else is read raw, as by {@link SysFS#read(String, Reading)}.
+   */
+  public Result read( String path, Reading into )
+  {
+    String[] part = path.split( "/" );
+    
+    if ( part.length == 3 || part.length == 4 )
+    {
+      DeviceNodeInstance dn   = new DeviceNodeInstance( part[0], part[1] );
+      AttributeInstance  attr = new AttributeInstance( part[2], part.length == 4 ? part[3] : null );
+      Entry              e    = entry( dn, attr );
+      
+      if ( e != null )
+      {
+        into.set( Result.OK, 0 );
+        into.text  = e.text;
+        into.bytes = e.bytes.clone();
+        return Result.OK;
+      }
+    }
+    
+    return sysfs.read( path, into );
+  }
+
+
+  /**
+   * Read all of batch's attributes into its buffer, cached values copied in and the rest read back-to-back
+   * 
+   * @return given batch
+   * @see SysFS#readAll(DeviceNodeInstance, Batch)
+   */
+  public Batch readAll( DeviceNodeInstance dn, Batch into )
+  {
+    ByteBuffer buffer = into.buffer;
+
+    buffer.clear();
+    
+    into.millis = System.currentTimeMillis();
+    into.nanos  = System.nanoTime();
+
+    for ( int i=0 ; i < into.attributes.length ; i++ )
+    {
+      Entry e = entry( dn, into.attributes[i] );
+      
+      into.offset[i] = buffer.position();
+      
+      if ( e == null )
+        into.result[i] = sysfs.readAppend( dn, into.attributes[i], buffer );
+      else
+      if ( e.bytes.length < buffer.remaining() )
+      {
+        buffer.put( e.bytes );
+        into.result[i] = Result.OK;
+      }
+      else
+        into.result[i] = Result.RANGE;
+      
+      into.length[i] = buffer.position() - into.offset[i];
+    }
+
+    into.skew = System.nanoTime() - into.nanos;
+
+    return into;
+  }
+
+
+  /** Cached entry for attribute, reading it if cacheable and not yet cached - null if live or unreadable */
+  private Entry entry( DeviceNodeInstance dn, AttributeInstance attr )
+  {
+    Node  node = values.get( dn );
+    Entry e    = node == null ? null : node.entries.get( attr );
+    
+    if ( e != null )
+      return e;
+
+    Volatility v = Volatility.of( attr );
+
+    // names may come from URLs - only attributes listed on the node get an entry
+    if ( v == Volatility.live || sysfs.attribute( dn, attr.name() ) == null )
+      return null;
+    
+    if ( node == null )
+      node = values.computeIfAbsent( dn, k -> new Node() );
+    
+    long    generation = node.generation.get();
+    Reading r          = new Reading();
+    
+    if ( !sysfs.read( dn, attr, r ).ok() )
+      return null;      // not cached, so an unplugged device is retried
+
+    String text  = r.text;
+    byte[] bytes = text.getBytes( SysFS.CHARSET );
+    
+    SysFS.parse( ByteBuffer.wrap( bytes ), 0, false, r );
+    
+    e = new Entry( v, text, bytes, r.result, r.value );
+
+    node.entries.put( attr, e );
+
+    // an invalidate since the read began may have missed this put - undo it, the value may be stale
+    if ( node.generation.get() != generation )
+      node.entries.remove( attr, e );
+
+    return e;
+  }
+  
+  
+  //===========================================================================
+  // Writing
+
+  /** Write attribute, forgetting all slow values cached for device as the write may have changed them */
+  public Result write( DeviceNodeInstance dn, AttributeInstance attr, String text )
+  {
+    Result result = sysfs.write( dn, attr, text );
+    
+    invalidate( dn );
+
+    return result;
+  }
+  
+  /** Forget all slow values cached for device */
+  public void invalidate( DeviceNodeInstance dn )
+  {
+    Node node = values.get( dn );
+    
+    if ( node != null )
+    {
+      node.generation.incrementAndGet();
+      node.entries.values().removeIf( e -> e.volatility == Volatility.slow );
+    }
+  }
+
+  /** Forget all values cached for device - call when the device is removed */
+  public void close( DeviceNodeInstance dn )
+  {
+    values.remove( dn );
+  }
+
+}
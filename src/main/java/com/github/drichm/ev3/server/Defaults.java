@@ -20,6 +20,57 @@ public class Defaults
                                       ? Paths.get("").toAbsolutePath().resolve( "src/main/webapp" )
                                       : Paths.get("").toAbsolutePath().resolve( "debug" );
   
+  /** Milliseconds between background rescans for hot-plugged devices */
+  static public long    SCAN_MILLIS = 500;
+  
+  /** Milliseconds between sensor samples */
+  static public long    SAMPLE_MILLIS = 10;
+  
+  /** Milliseconds between motion profile updates */
+  static public long    TRAJECTORY_MILLIS = 10;
+  
+  /** Milliseconds between checks for changed values to push to WebSocket subscribers */
+  static public long    TELEMETRY_MILLIS = 50;
+  
+  /**
+   * Most HTTP connections served at once, and most waiting - any more are turned away
+   * <p>
+   * NanoHTTPD holds a worker for each kept-alive connection until it idles out, and a browser keeps around six
+   * open to a host, so this allows two or three clients' pages at once.
+   */
+  static public int     HTTP_THREADS = 16;
+  static public int     HTTP_QUEUE   = 32;
+  
+  /** Milliseconds an HTTP connection may wait for a worker before it is turned away */
+  static public long    HTTP_QUEUE_MILLIS = 5000;
+  
+  /** Most WebSockets open at once - counted apart from HTTP_THREADS */
+  static public int     HTTP_WEBSOCKETS = 8;
+  
+  /** Serve HTTP connections on virtual threads, if the JDK has them */
+  static public boolean HTTP_VIRTUAL = true;
+  
+  /** Serve HTTP from NioServletApp rather than NanoHTTPD - set with -Dev3.http.nio=true */
+  static public boolean HTTP_NIO = Boolean.getBoolean( "ev3.http.nio" );
+  
+  /** Milliseconds an idle HTTP connection is kept open for another request (NIO server) */
+  static public long    HTTP_KEEP_ALIVE_MILLIS = 15000;
+  
+  /** Bytes of web-app files kept in memory (with their gzipped copies) - a quarter of it the largest file cached */
+  static public long    WEB_CACHE_BYTES = 4 * 1024 * 1024;
+  
+  /** Port of binary protocol for a master, 0 for none */
+  static public int     BINARY_PORT = 8081;
+  
+  /** Milliseconds between binary protocol sample pushes */
+  static public long    BINARY_PUSH_MILLIS = 20;
+  
+  /** Port of UDP motor setpoints, 0 for none */
+  static public int     UDP_PORT = 8082;
+  
+  /** Milliseconds without a UDP datagram after which motors it commanded are stopped, 0 for never */
+  static public long    UDP_WATCHDOG_MILLIS = 500;
+  
 
   //===========================================================================
   // Locale
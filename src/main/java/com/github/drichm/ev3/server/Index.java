@@ -1,14 +1,27 @@
 package com.github.drichm.ev3.server;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.github.drichm.ev3.lib.Sampler;
+import com.github.drichm.ev3.lib.Trajectory;
 
 import com.github.drichm.ev3.server.api.IHttp;
 import com.github.drichm.ev3.server.api.IServer;
 import com.github.drichm.ev3.server.api.IServlet;
 import com.github.drichm.ev3.server.api.ISocket;
+import com.github.drichm.ev3.server.binary.BinaryServer;
+import com.github.drichm.ev3.server.binary.UdpServer;
+import com.github.drichm.ev3.server.servlet.Command;
+import com.github.drichm.ev3.server.servlet.Control;
+import com.github.drichm.ev3.server.servlet.Motion;
+import com.github.drichm.ev3.server.servlet.Odometer;
 import com.github.drichm.ev3.server.servlet.RawDevice;
 import com.github.drichm.ev3.server.servlet.Repository;
+import com.github.drichm.ev3.server.servlet.Series;
 import com.github.drichm.ev3.server.servlet.Status;
+import com.github.drichm.ev3.server.servlet.Telemetry;
+import com.github.drichm.ev3.server.servlet.UrlContextServer;
 import com.github.drichm.ev3.server.servlet.WebServer;
 
 
@@ -27,9 +40,51 @@ public class Index  implements IServlet
   /** Raw Device access */
   static public final RawDevice   DEVICE     = new RawDevice ( "/device", REPOSITORY.repo );
 
+  /** Fixed-rate sensor sampling */
+  static public final Sampler     SAMPLER    = new Sampler   ( REPOSITORY.repo.sysfs, TimeUnit.MILLISECONDS.toNanos( Defaults.SAMPLE_MILLIS ) );
+
+  /** Sampled history */
+  static public final Series      SERIES     = new Series    ( "/series", REPOSITORY.repo, SAMPLER );
+
+  /** Synchronised multi-motor commands */
+  static public final Command     COMMAND    = new Command   ( "/command", REPOSITORY.repo );
+
+  /** On-brick motor controllers */
+  static public final Control     CONTROL    = new Control   ( "/control", REPOSITORY.repo );
+
+  /** On-brick motion profiles */
+  static public final Trajectory  TRAJECTORY = new Trajectory( REPOSITORY.repo.sysfs, TimeUnit.MILLISECONDS.toNanos( Defaults.TRAJECTORY_MILLIS ) );
+
+  static public final Motion      MOTION     = new Motion    ( "/move", REPOSITORY.repo, TRAJECTORY );
+
+  /** Pose from motor positions */
+  static public final Odometer    ODOMETRY   = new Odometer  ( "/odometry", REPOSITORY.repo, SAMPLER );
+
+  /** WebSocket push of changed values */
+  static public final Telemetry   TELEMETRY  = new Telemetry ( REPOSITORY.repo, TimeUnit.MILLISECONDS.toNanos( Defaults.TELEMETRY_MILLIS ) );
+
+  /** Binary protocol for a master - started by NanoServletApp */
+  static public final BinaryServer BINARY   = new BinaryServer( Defaults.BINARY_PORT, REPOSITORY.repo, SAMPLER, TimeUnit.MILLISECONDS.toNanos( Defaults.BINARY_PUSH_MILLIS ) );
+
+  /** UDP motor setpoints - started by NanoServletApp */
+  static public final UdpServer   UDP        = new UdpServer ( Defaults.UDP_PORT, REPOSITORY.repo, Defaults.UDP_WATCHDOG_MILLIS );
+
   /** Java status */
   static public final Status      STATUS     = new Status    ( "/status" );
   
+  static
+  {
+    STATUS.report( "sampler"    , SAMPLER::report );
+    STATUS.report( "controllers", CONTROL::report );
+    STATUS.report( "moves"      , TRAJECTORY::report );
+    STATUS.report( "telemetry"  , TELEMETRY::report );
+    STATUS.report( "binary"     , BINARY::report );
+    STATUS.report( "udp"        , UDP::report );
+    
+    REPOSITORY.repo.addListener( SAMPLER );
+    REPOSITORY.repo.addListener( BINARY  );
+  }
+  
   static public final IServer     ROOT  = new IServer()
   {
     @Override public boolean serve( IHttp http ) throws IOException
@@ -44,6 +99,14 @@ public class Index  implements IServlet
     }
   };
 
+  /** All of the above by URL context, ROOT as the final test */
+  static public final Router      ROUTER     = new Router( new UrlContextServer[]{ DEBUG, REPOSITORY, DEVICE, SERIES, COMMAND, CONTROL, MOTION, ODOMETRY, STATUS }, ROOT );
+  
+  static
+  {
+    STATUS.report( "routes", ROUTER::report );
+  }
+
   
   //===========================================================================
 
@@ -51,27 +114,24 @@ public class Index  implements IServlet
   @Override
   public boolean serve( IHttp http ) throws IOException
   {
-    return DEBUG     .serve( http )
-        || REPOSITORY.serve( http )
-        || DEVICE    .serve( http )
-        || STATUS    .serve( http )
-        
-        // final test
-        || ROOT      .serve( http )
-        ;
+    return ROUTER.serve( http );
   }
   
   
   
-  public void onConnect( ISocket socket ) throws IOException
+  //===========================================================================
+  // WebSockets
+
+  @Override
+  public void onMessage( ISocket socket, String message ) throws IOException
   {
-    socket.send( "Hello" );
+    TELEMETRY.onMessage( socket, message );
   }
   
   @Override
-  public void onMessage( ISocket socket, String message ) throws IOException
+  public void onClose( ISocket socket, int statusCode, String reason ) throws IOException
   {
-    socket.send( message + " ... back to you" );
+    TELEMETRY.onClose( socket );
   }
 
 }
@@ -0,0 +1,186 @@
+package com.github.drichm.ev3.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.drichm.ev3.server.api.IHttp;
+import com.github.drichm.ev3.server.api.IServer;
+import com.github.drichm.ev3.server.servlet.UrlContextServer;
+
+/**
+ * Dispatch requests to URL context servers through a prefix trie of their contexts
+ * <p>
+ * One pass over the path finds the longest context that ends at a '/' or the end of the path - no server is
+ * asked in turn, and nothing is allocated to find it. Requests no context matches go to the fallback servers, in order.
+ * Each route counts its requests and their time.
+ */
+public class Router implements IServer
+{
+  //===========================================================================
+
+  /** Requests and time spent serving them, for one route */
+  static public class Route
+  {
+    public  final String           context;
+    private final UrlContextServer server;
+    
+    private final LongAdder        count = new LongAdder();
+    private final LongAdder        nanos = new LongAdder();
+    private final AtomicLong       max   = new AtomicLong();
+    
+    Route( String context, UrlContextServer server )
+    {
+      this.context = context;
+      this.server  = server;
+    }
+    
+    void served( long took )
+    {
+      count.increment();
+      nanos.add( took );
+      max  .accumulateAndGet( took, Math::max );
+    }
+  }
+
+  static public class Report
+  {
+    public final long   count;
+    public final double meanMicros;
+    public final double maxMicros;
+    
+    Report( long count, long nanos, long max )
+    {
+      this.count      = count;
+      this.meanMicros = count == 0 ? 0 : nanos / 1000.0 / count;
+      this.maxMicros  = max / 1000.0;
+    }
+  }
+  
+  
+  /** Trie node, one per context character - children searched linearly, as there are few */
+  static private class Node
+  {
+    char[] keys     = {};
+    Node[] children = {};
+    Route  route;
+    
+    Node child( char c )
+    {
+      for ( int i=0 ; i < keys.length ; i++ )
+        if ( keys[i] == c )
+          return children[i];
+
+      return null;
+    }
+    
+    Node add( char c )
+    {
+      Node child = child( c );
+      
+      if ( child == null )
+      {
+        int n = keys.length;
+        
+        keys     = Arrays.copyOf( keys    , n + 1 );
+        children = Arrays.copyOf( children, n + 1 );
+        
+        keys    [n] = c;
+        children[n] = child = new Node();
+      }
+      
+      return child;
+    }
+  }
+  
+  
+  //===========================================================================
+
+  private final Node      root = new Node();
+  private final Route[]   routes;
+  private final IServer[] fallback;
+  
+  /** Requests served by fallback, or by nothing */
+  private final Route     unrouted = new Route( "", null );
+
+  
+  public Router( UrlContextServer[] servers, IServer... fallback )
+  {
+    this.routes   = new Route[ servers.length ];
+    this.fallback = fallback;
+    
+    for ( int i=0 ; i < servers.length ; i++ )
+    {
+      Node node = root;
+
+      for ( char c: servers[i].urlContext.toCharArray() )
+        node = node.add( c );
+      
+      if ( node.route != null )
+        throw new IllegalArgumentException( "Context served twice: " + servers[i].urlContext );
+      
+      routes[i] = node.route = new Route( servers[i].urlContext, servers[i] );
+    }
+  }
+  
+  
+  //===========================================================================
+
+  /** Counts and times by route, "" for requests no route matched */
+  public Map<String,Report> report()
+  {
+    Map<String,Report> report = new LinkedHashMap<>();
+    
+    for ( Route r: routes )
+      report.put( r.context, new Report( r.count.sum(), r.nanos.sum(), r.max.get() ) );
+    
+    report.put( "", new Report( unrouted.count.sum(), unrouted.nanos.sum(), unrouted.max.get() ) );
+    
+    return report;
+  }
+  
+  
+  @Override public boolean serve( IHttp http ) throws IOException
+  {
+    long   start = System.nanoTime();
+    String path  = http.path();
+    Node   node  = root;
+    Route  match = null;
+    int    i     = 0;
+    
+    for ( ; node != null ; i++ )
+    {
+      boolean end = i == path.length();
+      
+      if ( node.route != null && (end || path.charAt( i ) == '/') )
+        match = node.route;
+
+      node = end ? null : node.child( path.charAt( i ) );
+    }
+    
+    if ( match != null )
+    {
+      match.server.route( http, path );
+      match.served( System.nanoTime() - start );
+      return true;
+    }
+    
+    try
+    {
+      for ( IServer s: fallback )
+        if ( s.serve( http ) )
+          return true;
+
+      return false;
+    }
+    finally
+    {
+      unrouted.served( System.nanoTime() - start );
+    }
+  }
+
+}
@@ -1,7 +1,10 @@
 package com.github.drichm.ev3.server.api;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
@@ -36,15 +39,36 @@ public interface IHttp
   
   //===========================================================================  WRITE
 
+  /** Reply body made as it is sent */
+  public interface Content
+  {
+    public void writeTo( Writer out ) throws IOException;
+  }
+  
+
   /** Write text to client */
   public void                       write( String text, Mime mime );
 
-  /** Convert object to JSON and send to client */
-  default public void              json( Object x )                 { write( JSON.stringify( x ), Mime.JSON ); }
+  /**
+   * Convert object to JSON as it is sent to client - object must not change once given
+   * <p>
+   * A failure converting it is replied 500 only if no body was sent yet: past the first 8K the reply is cut short
+   * instead - a chunked one without its last chunk - and the connection closed.
+   */
+  default public void               json( Object x )                 { write( out -> JSON.stringifyInto( x, out ), Mime.JSON ); }
+
+  /** Write text to client as content makes it - UTF-8, through a buffer of fixed size however long */
+  public void                       write( Content content, Mime mime );
 
   /** Write input stream to client, CALLER MUST CLOSE STREAM - it will be closed for you */
   public void                       write( InputStream in, long length, Mime mime );
 
+  /** Write bytes to client */
+  public void                       write( byte[] bytes, Mime mime );
+
+  /** Write length bytes of file from offset to client, without copying them through Java where the server can - 206 Partial Content if not the whole file */
+  public void                       write( Path file, long offset, long length, Mime mime ) throws IOException;
+
   /** Send status code with message */
   public void                       status( int code, String message );
 
@@ -54,4 +78,7 @@ public interface IHttp
   /* Send redirect to client */
   public void                       redirect( String url );
 
+  /** Add header to the reply - after the write, status or redirect that makes it */
+  public void                       header( String name, String value );
+
 }
@@ -1,11 +1,32 @@
 package com.github.drichm.ev3.server.api;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 
 /** WebSocket interface */
 public interface ISocket
 {
+	/** Send text message */
 	public void send( String text ) throws IOException;
 
+	/** Send message already encoded by {@link #frame(String)} - one encoding can go to many sockets */
+	public void send( byte[] frame ) throws IOException;
+
+	/**
+	 * Queue encoded message to be sent by another thread, without blocking
+	 * 
+	 * @return false if the socket is closed, or was too slow to keep up and has been dropped
+	 */
+	public boolean offer( byte[] frame );
+
+	public boolean isOpen();
+
+	/** Close socket - the servlet's onClose follows */
+	public void close();
+
+
+	/** Encode text message once, for sending to any number of sockets */
+	static public byte[] frame( String text )  { return WebSocket.frame( WebSocket.TEXT, text.getBytes( StandardCharsets.UTF_8 ) ); }
+
 }
@@ -1,10 +1,15 @@
 package com.github.drichm.ev3.server.api;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
@@ -14,8 +19,6 @@ import com.github.drichm.ev3.server.utils.Mime;
 
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
-//import fi.iki.elonen.NanoWSD;
-//import fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode;
 
 // @see https://github.com/NanoHttpd/nanohttpd
 public class NanoServletApp extends NanoHTTPD
@@ -52,6 +55,9 @@ public class NanoServletApp extends NanoHTTPD
   //==========================================================================
 	
   static private final IServlet servlet = new Index(); 
+  
+  /** Runs connections */
+  private final Workers workers;
 
   public NanoServletApp() throws IOException {
     super( USE.port );
@@ -61,13 +67,33 @@ public class NanoServletApp extends NanoHTTPD
 
     USE.inform();
     
+    // bounded, rather than a thread per connection
+    workers = new Workers( Defaults.HTTP_THREADS, Defaults.HTTP_QUEUE, Defaults.HTTP_QUEUE_MILLIS, Defaults.HTTP_WEBSOCKETS, Defaults.HTTP_VIRTUAL );
+    
+    setAsyncRunner( workers );
+    Index.STATUS.report( "http", workers::report );
+    
     start( NanoHTTPD.SOCKET_READ_TIMEOUT, false );
     
+    startProtocols();
+  }
+  
+  /** Start the non-HTTP listeners - whichever HTTP server is used */
+  static protected void startProtocols() throws IOException
+  {
+    if ( Defaults.BINARY_PORT > 0 )
+      Index.BINARY.start();
+    
+    if ( Defaults.UDP_PORT > 0 )
+      Index.UDP.start();
   }
 
   static public void main(String[] args) {
     try {
-        new NanoServletApp();
+        if ( Defaults.HTTP_NIO )
+          new NioServletApp();
+        else
+          new NanoServletApp();
     } catch (IOException ioe) {
         System.err.println("Couldn't start server:\n" + ioe);
     }
@@ -79,6 +105,9 @@ public class NanoServletApp extends NanoHTTPD
   @Override
   public Response serve( IHTTPSession session ) 
   {
+    if ( WebSocket.requested( session.getHeaders() ) )
+      return new Upgrade( session );
+    
   	try 
   	{ 
   	  Http http = new Http( session );
@@ -94,6 +123,14 @@ public class NanoServletApp extends NanoHTTPD
   }
   
   
+  /** NanoHTTPD gzips text as it sends it - not replies already encoded (cached gzip), nor other than 200 OK */
+  @Override
+  protected boolean useGzipWhenAccepted( Response r )
+  {
+    return r.getStatus() == Status.OK && r.getHeader( "content-encoding" ) == null && super.useGzipWhenAccepted( r );
+  }
+  
+  
   //==========================================================================
 
   /** HTTP interface implementation */
@@ -132,12 +169,45 @@ public class NanoServletApp extends NanoHTTPD
       response = newFixedLengthResponse( Status.OK, ((mime != null) ? mime : Mime.UNKNOWN).mimeType, in, length ); 
     }
 
+    @Override public void   write   ( Content content, Mime mime ) 
+    { 
+      response = new Streamed( mime, content ); 
+    }
+
+    @Override public void   write   ( byte[] bytes, Mime mime ) 
+    { 
+      write( new ByteArrayInputStream( bytes ), bytes.length, mime ); 
+    }
+
+    /** NanoHTTPD sockets have no channel to transfer to, so the file is copied through its send buffer */
+    @Override public void   write   ( Path file, long offset, long length, Mime mime ) throws IOException
+    {
+      FileChannel channel = FileChannel.open( file );
+      
+      try
+      {
+        Status status = offset > 0 || length < channel.size() ? Status.PARTIAL_CONTENT : Status.OK;
+        
+        response = newFixedLengthResponse( status, ((mime != null) ? mime : Mime.UNKNOWN).mimeType, Channels.newInputStream( channel.position( offset ) ), length );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        channel.close();
+        throw e;
+      }
+    }
+
     @Override public void   redirect( String url )
     {
       response( Status.REDIRECT, Mime.HTML );
       response.addHeader( "Location", url );
     }
     
+    @Override public void   header  ( String name, String value )
+    {
+      response().addHeader( name, value );
+    }
+    
   	public Response response()
   	{ 
   	  if ( response == null )
@@ -150,70 +220,100 @@ public class NanoServletApp extends NanoHTTPD
   
   
   //==========================================================================
-  // WebSockets - do not work with Chrome (as-of September 2019)
+
+  /** Reply written by its content as it is sent, through this thread's ReplyWriter */
+  protected class Streamed extends Response
+  {
+    protected final IHttp.Content content;
+    protected final StringBuilder headers = new StringBuilder();
+    protected       boolean       keepAlive;
+    
+    public Streamed( Mime mime, IHttp.Content content )
+    {
+      super( Status.OK, mime.mimeType, null, -1 );
+      
+      this.content = content;
+    }
+    
+    @Override public void addHeader( String name, String value )
+    {
+      super.addHeader( name, value );
+      headers.append( name ).append( ": " ).append( value ).append( "\r\n" );
+    }
+    
+    @Override public void setKeepAlive( boolean keepAlive )
+    {
+      super.setKeepAlive( keepAlive );
+      this.keepAlive = keepAlive;
+    }
+    
+    /** Write head and body ourselves - NanoHTTPD would want the body as an InputStream */
+    @Override protected void send( OutputStream out )
+    {
+      String head = "HTTP/1.1 " + getStatus().getDescription() + " \r\n"
+                  + "Content-Type: " + getMimeType() + "\r\n"
+                  + headers
+                  + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+      try
+      {
+        // NanoHTTPD keeps only HTTP/1.1 connections alive, so a kept-alive reply may be chunked
+        if ( !ReplyWriter.send( out, head, keepAlive, getRequestMethod() == Method.HEAD, content ) )
+          closeConnection( true );
+      }
+      catch ( IOException e )
+      {
+        // part sent perhaps - the connection is no use after it
+        closeConnection( true );
+      }
+    }
+  }
+  
   
-//  @Override
-//  protected WebSocket openWebSocket( IHTTPSession handshake )  { return new SocketHandler( handshake ); }
-//  
-//  	
-//  /** Active websocket instance */
-//  public class SocketHandler extends WebSocket
-//  {
-//
-//    private final ISocket socket;
-//    
-//    public SocketHandler( IHTTPSession handshake )
-//  	{
-//      super( handshake );
-//      	
-//      this.socket = new Socket( this );
-//  	}
-//
-//    @Override
-//    protected void onOpen()
-//    { try { servlet.onConnect( socket ); } catch (IOException e) { throw new RuntimeException(e); } }
-//
-//    @Override
-//    protected void onMessage( WebSocketFrame message  )
-//    { try { servlet.onMessage( socket, message.getTextPayload() ); } catch (IOException e) { throw new RuntimeException(e); } }
-//
-//    @Override
-//    protected void onPong   ( WebSocketFrame message  )
-//    {  }
-//
-//    @Override
-//    protected void onException( IOException e )
-//    { try { servlet.onError ( socket, e ); } catch (IOException x) { throw new RuntimeException(x); } }
-//
-//    @Override
-//    protected void onClose  ( CloseCode code, String reason, boolean initiatedByRemote )
-//    { try { servlet.onClose( code.getValue(), reason ); } catch (IOException e) { throw new RuntimeException(e); } }
-//
-//  }
-
-
-  // ==========================================================================
+  //==========================================================================
+  // WebSockets - NanoWSD does not work with Chrome (as-of September 2019), so we do our own
+
+  /** Reply switching the connection to a WebSocket, which it then serves until closed */
+  protected class Upgrade extends Response
+  {
+    protected final IHTTPSession session;
+    
+    public Upgrade( IHTTPSession session )
+    {
+      super( Status.SWITCH_PROTOCOL, null, null, 0 );
+      
+      this.session = session;
+    }
+    
+    /** Write handshake ourselves - nothing of an ordinary response (content length, keep-alive) belongs in it */
+    @Override protected void send( OutputStream out )
+    {
+      String handshake = "HTTP/1.1 101 Switching Protocols\r\n"
+                       + "Upgrade: websocket\r\n"
+                       + "Connection: Upgrade\r\n"
+                       + "Sec-WebSocket-Accept: " + WebSocket.accept( session.getHeaders().get( "sec-websocket-key" ) ) + "\r\n"
+                       + "\r\n";
+      try
+      {
+        if ( !workers.upgrade() )
+        {
+          out.write( "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes( StandardCharsets.US_ASCII ) );
+          out.flush();
+        }
+        else
+        {
+          out.write( handshake.getBytes( StandardCharsets.US_ASCII ) );
+          out.flush();
   
-  /** Abstract Socket implementation for NanoWSD */
-//  static public class Socket implements ISocket
-//  {
-//  	private final SocketHandler handler;
-//
-//  	public Socket( SocketHandler handler )
-//  	{
-//  	  this.handler = handler;
-//  	}
-//  	
-//    public void json( Object x ) throws IOException
-//    {
-//      handler.send( JSON.stringify( x ) );
-//    }
-//
-//    public void send( String text ) throws IOException
-//  	{
-//  	  handler.send( text );
-//  	}
-//  }
+          new WebSocket( servlet, session.getInputStream(), out ).run();
+        }
+      }
+      catch ( IOException e )
+      { // client gone before the handshake completed
+      }
 
+      // connection is finished with once the socket closes
+      closeConnection( true );
+    }
+  }
 
 }
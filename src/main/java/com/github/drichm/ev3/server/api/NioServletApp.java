@@ -0,0 +1,1112 @@
+package com.github.drichm.ev3.server.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.github.drichm.ev3.server.Defaults;
+import com.github.drichm.ev3.server.Index;
+import com.github.drichm.ev3.server.utils.Mime;
+
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * HTTP/1.1 server on one NIO selector thread, serving the same servlet as {@link NanoServletApp} - chosen at
+ * startup by {@link Defaults#HTTP_NIO}
+ * <p>
+ * The selector accepts, reads and writes every connection; only a complete request is handed to one of a few worker
+ * threads, and the reply it makes is written back by the selector. Connections are kept alive between requests, and
+ * hold a (direct, pooled) buffer only while a request or reply is under way, so idle clients cost neither a thread
+ * nor much memory.
+ * <p>
+ * Request bodies need a Content-Length - chunked uploads are refused. A WebSocket leaves the selector once upgraded,
+ * for a blocking thread of its own as under NanoHTTPD - at most {@link Defaults#HTTP_WEBSOCKETS}, others refused 503.
+ * HTTP only, no HTTPS.
+ */
+public class NioServletApp
+{
+  //===========================================================================
+
+  /** Size of pooled buffers - a request line and headers must fit in one */
+  static public final int BUFFER   = 8 * 1024;
+
+  /** Most idle buffers kept for reuse */
+  static public final int POOL     = 32;
+
+  /** Largest request body accepted */
+  static public final int MAX_BODY = 256 * 1024;
+
+  /** Read timeout of upgraded WebSockets, as NanoHTTPD.SOCKET_READ_TIMEOUT */
+  static public final int SOCKET_READ_TIMEOUT = 5000;
+
+  static private final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes( StandardCharsets.US_ASCII );
+  static private final byte[] EMPTY    = {};
+
+
+  //===========================================================================
+
+  /** Request refused while reading it - its status is replied before the connection is closed */
+  static private final class Refused extends IllegalArgumentException
+  {
+    static private final long serialVersionUID = 1L;
+
+    final int    code;
+    final String reason;
+
+    Refused( int code, String reason, String message )
+    {
+      super( message );
+
+      this.code   = code;
+      this.reason = reason;
+    }
+  }
+
+  static public class Report
+  {
+    public final String mode = "nio";
+    public final int    port;
+    public final int    threads;
+    public final int    connections;
+    public final long   requests;
+    public final long   reused;
+    public final long   upgraded;
+    public final int    websockets;
+    public final int    buffers;
+    public final int    pooled;
+
+    Report( NioServletApp s )
+    {
+      this.port        = s.port;
+      this.threads     = s.threads;
+      this.connections = s.connections;
+      this.requests    = s.requests;
+      this.reused      = s.reused;
+      this.upgraded    = s.upgraded;
+      this.websockets  = Defaults.HTTP_WEBSOCKETS - s.websockets.availablePermits();
+      this.buffers     = s.buffers;
+      this.pooled      = s.pooled;
+    }
+  }
+
+
+  //===========================================================================
+
+  static private final IServlet servlet = new Index();
+
+  public final int               port;
+  public final int               threads;
+  public final long              keepAliveNanos;
+
+  private final Selector         selector;
+  private final Thread           thread;
+  private final ExecutorService  workers;
+  
+  /** Places for WebSockets, each holding a thread */
+  private final Semaphore        websockets = new Semaphore( Defaults.HTTP_WEBSOCKETS );
+
+  /** Served requests, their replies ready to write */
+  private final ConcurrentLinkedQueue<Connection> replies = new ConcurrentLinkedQueue<>();
+
+  /** Selector thread only - idle buffers, and connections to hand to a WebSocket */
+  private final ArrayDeque<ByteBuffer> pool     = new ArrayDeque<>();
+  private final List<Connection>       upgrades = new ArrayList<>();
+
+  /** Counters */
+  private volatile int           connections;
+  private volatile long          requests;
+  private volatile long          reused;
+  private volatile long          upgraded;
+  private volatile int           buffers;
+  private volatile int           pooled;
+
+  private final Consumer<SelectionKey> ready = this::ready;
+
+
+  public NioServletApp() throws IOException
+  {
+    this.port           = NanoServletApp.USE.port;
+    this.threads        = Defaults.HTTP_THREADS;
+    this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos( Defaults.HTTP_KEEP_ALIVE_MILLIS );
+
+    if ( NanoServletApp.USE.secure )
+      throw new IOException( "NIO server does not do HTTPS" );
+
+    AtomicInteger n = new AtomicInteger();
+
+    workers = Executors.newFixedThreadPool( threads, r -> {
+      Thread t = new Thread( r, "ev3-http-" + n.incrementAndGet() );
+      t.setDaemon( true );
+      return t;
+    } );
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+
+    server.bind( new InetSocketAddress( port ) );
+    server.configureBlocking( false );
+
+    selector = Selector.open();
+    server.register( selector, SelectionKey.OP_ACCEPT );
+
+    NanoServletApp.USE.inform();
+    Index.STATUS.report( "http", this::report );
+
+    // not a daemon - keeps the server running, as NanoHTTPD's listener does
+    thread = new Thread( this::loop, "ev3-http" );
+    thread.start();
+
+    NanoServletApp.startProtocols();
+  }
+
+  static public void main(String[] args) {
+    try {
+        new NioServletApp();
+    } catch (IOException ioe) {
+        System.err.println("Couldn't start server:\n" + ioe);
+    }
+  }
+
+  public Report report()  { return new Report( this ); }
+
+
+  //===========================================================================
+
+  private void loop()
+  {
+    long sweep = System.nanoTime();
+
+    try
+    {
+      while ( true )
+      {
+        selector.select( ready, 1000 );
+
+        for ( Connection c; (c = replies.poll()) != null; )
+          reply( c );
+
+        if ( !upgrades.isEmpty() )
+          upgrade();
+
+        long now = System.nanoTime();
+
+        if ( now - sweep >= TimeUnit.SECONDS.toNanos( 1 ) )
+        {
+          sweep( now );
+          sweep = now;
+        }
+      }
+    }
+    catch ( IOException e )
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private void ready( SelectionKey key )
+  {
+    try
+    {
+      if ( key.isAcceptable() )
+        accept( key );
+      else
+      {
+        Connection c = (Connection) key.attachment();
+
+        if ( key.isReadable() )
+          read( c );
+        else
+        if ( key.isWritable() )
+          write( c );
+      }
+    }
+    catch ( Refused e )
+    {
+      refuse( key, e );
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      // connection gone
+      close( key );
+    }
+  }
+
+  /** Reply refused request's status, as far as one write gets, and close */
+  private void refuse( SelectionKey key, Refused e )
+  {
+    Connection c    = (Connection) key.attachment();
+    byte[]     body = String.valueOf( e.getMessage() ).getBytes( StandardCharsets.UTF_8 );
+    String     head = "HTTP/1.1 " + e.code + " " + e.reason + "\r\n"
+                    + "Content-Type: text/plain; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n";
+    try
+    {
+      c.channel.write( new ByteBuffer[]{ ByteBuffer.wrap( head.getBytes( StandardCharsets.US_ASCII ) ), ByteBuffer.wrap( body ) } );
+      c.channel.shutdownOutput();
+    }
+    catch ( IOException ignored )
+    { // closing anyway
+    }
+
+    close( key );
+  }
+
+  private void accept( SelectionKey key ) throws IOException
+  {
+    SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+
+    if ( channel == null )
+      return;
+
+    channel.configureBlocking( false );
+    channel.socket().setTcpNoDelay( true );
+
+    SelectionKey ck = channel.register( selector, SelectionKey.OP_READ );
+
+    ck.attach( new Connection( channel, ck ) );
+    connections = connections + 1;
+  }
+
+  private void close( SelectionKey key )
+  {
+    Connection c = (Connection) key.attachment();
+
+    if ( c == null )
+      return;
+
+    key.attach( null );
+    key.cancel();
+
+    release( c );
+
+    try
+    {
+      c.channel.close();
+    }
+    catch ( IOException ignored )
+    { // gone already
+    }
+
+    connections = connections - 1;
+  }
+
+  /** Close connections idle for longer than keep-alive - a worker's are not idle */
+  private void sweep( long now )
+  {
+    for ( SelectionKey key: selector.keys() )
+    {
+      Object c = key.attachment();
+
+      if ( c instanceof Connection && !((Connection) c).busy && now - ((Connection) c).last > keepAliveNanos )
+        close( key );
+    }
+  }
+
+
+  //===========================================================================
+  // Buffers
+
+  private ByteBuffer acquire()
+  {
+    ByteBuffer b = pool.poll();
+
+    if ( b == null )
+    {
+      buffers = buffers + 1;
+      return ByteBuffer.allocateDirect( BUFFER );
+    }
+
+    pooled = pool.size();
+    return b;
+  }
+
+  private void release( ByteBuffer b )
+  {
+    if ( pool.size() < POOL )
+    {
+      pool.push( b.clear() );
+      pooled = pool.size();
+    }
+    else
+      buffers = buffers - 1;
+  }
+
+  /** Return connection's buffers and any WebSocket place it holds, and close any stream it was sending */
+  private void release( Connection c )
+  {
+    if ( c.socket )
+      websockets.release();
+
+    c.socket = false;
+
+    if ( c.in != null )
+      release( c.in );
+
+    if ( c.out != null )
+      release( c.out );
+
+    c.in  = null;
+    c.out = null;
+
+    if ( c.stream != null )
+      try
+      {
+        c.stream.close();
+      }
+      catch ( IOException ignored )
+      { // nothing more to send anyway
+      }
+
+    c.stream = null;
+    c.file   = null;
+  }
+
+
+  //===========================================================================
+  // Reading requests
+
+  private void read( Connection c ) throws IOException
+  {
+    c.last = System.nanoTime();
+
+    if ( c.body != null )
+    {
+      if ( c.channel.read( c.body ) < 0 )
+        throw new EOFException();
+
+      if ( !c.body.hasRemaining() )
+        dispatch( c );
+
+      return;
+    }
+
+    if ( c.in == null )
+      c.in = acquire();
+
+    if ( c.channel.read( c.in ) < 0 )
+      throw new EOFException();
+
+    parse( c );
+  }
+
+  /** Take a request from the start of the read buffer if it has a whole head, and dispatch it if it has its body */
+  private void parse( Connection c ) throws IOException
+  {
+    ByteBuffer in  = c.in;
+    int        end = headEnd( in );
+
+    if ( end < 0 )
+    {
+      if ( !in.hasRemaining() )
+        throw new Refused( 431, "Request Header Fields Too Large", "Request head larger than " + BUFFER + " bytes" );
+
+      return;
+    }
+
+    byte[] head = new byte[ end ];
+
+    in.flip();
+    in.get( head );
+
+    Http   http   = new Http( new String( head, StandardCharsets.ISO_8859_1 ) );
+    int    length = http.contentLength();
+    byte[] body   = length > 0 ? new byte[ length ] : EMPTY;
+    int    got    = Math.min( length, in.remaining() );
+
+    in.get( body, 0, got );
+    in.compact();
+
+    http.body = body;
+    c.http    = http;
+
+    if ( got < length )
+    {
+      c.body = ByteBuffer.wrap( body, got, length - got );
+
+      if ( "100-continue".equalsIgnoreCase( http.headers.get( "expect" ) ) )
+        c.channel.write( ByteBuffer.wrap( CONTINUE ) );
+    }
+    else
+      dispatch( c );
+
+    if ( c.in.position() == 0 )
+    {
+      release( c.in );
+      c.in = null;
+    }
+  }
+
+  /** Index after the blank line ending a request head, -1 if not read yet */
+  static private int headEnd( ByteBuffer in )
+  {
+    for ( int i=3, n=in.position() ; i < n ; i++ )
+      if ( in.get( i ) == '\n' && in.get( i-1 ) == '\r' && in.get( i-2 ) == '\n' && in.get( i-3 ) == '\r' )
+        return i + 1;
+
+    return -1;
+  }
+
+  /** Hand complete request to a worker, reading nothing more from the connection until its reply is written */
+  private void dispatch( Connection c )
+  {
+    c.body = null;
+    c.busy = true;
+    c.key.interestOps( 0 );
+
+    requests = requests + 1;
+
+    if ( c.served++ > 0 )
+      reused = reused + 1;
+
+    workers.execute( () -> serve( c ) );
+  }
+
+  /** On a worker - serve request, and queue its reply for the selector, whatever happens, so no connection is stranded */
+  private void serve( Connection c )
+  {
+    Http    http = c.http;
+    boolean done = false;
+
+    try
+    {
+      try
+      {
+        if ( WebSocket.requested( http.headers ) )
+        {
+          if ( websockets.tryAcquire() )
+          {
+            c.socket = true;
+            http.upgrade();
+          }
+          else
+            http.status( 503, "Already running " + Defaults.HTTP_WEBSOCKETS + " WebSockets" );
+        }
+        else
+          servlet.serve( http );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        e.printStackTrace();
+        http.failed( e );
+      }
+
+      if ( http.content != null )
+        http.stream( c );
+
+      http.reply( c );
+      
+      done = true;
+    }
+    catch ( IOException | RuntimeException e )
+    { // part sent perhaps, or nothing to send - the connection is no use after it
+    }
+    finally
+    {
+      if ( !done )
+        c.abort = true;
+
+      replies.add( c );
+      selector.wakeup();
+    }
+  }
+
+
+  //===========================================================================
+  // Writing replies
+
+  private void reply( Connection c )
+  {
+    if ( !c.key.isValid() )
+    {
+      release( c );
+      return;
+    }
+
+    if ( c.abort )
+    {
+      // any file or stream the reply did not get as far as taking
+      if ( c.http != null )
+        c.http.close();
+
+      close( c.key );
+      return;
+    }
+
+    try
+    {
+      c.key.interestOps( SelectionKey.OP_WRITE );
+      write( c );
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      close( c.key );
+    }
+  }
+
+  /** Write as much of reply as the socket takes, and finish with it once all is written */
+  private void write( Connection c ) throws IOException
+  {
+    if ( c.gather[0].hasRemaining() || c.gather[1].hasRemaining() )
+    {
+      c.channel.write( c.gather );
+
+      if ( c.gather[0].hasRemaining() || c.gather[1].hasRemaining() )
+        return;
+    }
+
+    if ( c.file != null )
+    {
+      // straight from file to socket (sendfile), no copy through Java
+      while ( c.remaining > 0 )
+      {
+        long n = c.file.transferTo( c.position, c.remaining, c.channel );
+
+        if ( n == 0 )
+        {
+          if ( c.position >= c.file.size() )
+            throw new EOFException( "File shorter than its Content-Length" );
+
+          return;
+        }
+
+        c.position  += n;
+        c.remaining -= n;
+      }
+    }
+    else
+    if ( c.stream != null )
+    {
+      ByteBuffer out = c.out;
+
+      if ( out == null )
+        (out = c.out = acquire()).flip();
+
+      while ( true )
+      {
+        if ( !out.hasRemaining() )
+        {
+          if ( c.remaining <= 0 )
+            break;
+
+          out.clear().limit( (int) Math.min( out.capacity(), c.remaining ) );
+
+          if ( c.stream.read( out ) < 0 )
+            throw new EOFException( "Reply shorter than its Content-Length" );
+
+          c.remaining -= out.flip().remaining();
+        }
+
+        c.channel.write( out );
+
+        if ( out.hasRemaining() )
+          return;
+      }
+    }
+
+    finished( c );
+  }
+
+  private void finished( Connection c ) throws IOException
+  {
+    Http http = c.http;
+
+    if ( c.out != null )
+      release( c.out );
+
+    if ( c.stream != null )
+      c.stream.close();
+
+    c.out    = null;
+    c.stream = null;
+    c.file   = null;
+    c.http   = null;
+    c.busy   = false;
+    c.last   = System.nanoTime();
+
+    if ( http.upgrade )
+      upgrades.add( c );
+    else
+    if ( !http.keepAlive )
+      close( c.key );
+    else
+    {
+      c.key.interestOps( SelectionKey.OP_READ );
+
+      // pipelined request read already
+      if ( c.in != null )
+        parse( c );
+    }
+  }
+
+  /** Take upgraded connections off the selector, and run each as a blocking WebSocket */
+  private void upgrade() throws IOException
+  {
+    for ( Connection c: upgrades )
+      c.key.cancel();
+
+    // deregisters them
+    selector.selectNow();
+    selector.selectedKeys().clear();
+
+    for ( Connection c: upgrades )
+    {
+      // its WebSocket place goes with it, to be given back when the socket closes
+      c.socket = false;
+      
+      release( c );
+      connections = connections - 1;
+      upgraded    = upgraded + 1;
+
+      Thread t = new Thread( () -> socket( c.channel ), "ev3-websocket" );
+
+      t.setDaemon( true );
+      t.start();
+    }
+
+    upgrades.clear();
+  }
+
+  private void socket( SocketChannel channel )
+  {
+    try ( SocketChannel ch = channel )
+    {
+      Socket socket = ch.socket();
+
+      ch.configureBlocking( true );
+      socket.setSoTimeout( SOCKET_READ_TIMEOUT );
+
+      new WebSocket( servlet, new BufferedInputStream( socket.getInputStream() ), socket.getOutputStream() ).run();
+    }
+    catch ( IOException e )
+    { // client gone
+    }
+    finally
+    {
+      websockets.release();
+    }
+  }
+
+
+  //===========================================================================
+
+  /** One client connection - selector thread only, but for the request and reply while a worker has it */
+  static private final class Connection
+  {
+    final SocketChannel       channel;
+    final SelectionKey        key;
+
+    /** Request being read (or read ahead), and body read past it */
+    ByteBuffer                in;
+    ByteBuffer                body;
+
+    /** Request being served and its reply - head and in-memory body, then any streamed body (from file if file) */
+    Http                      http;
+    final ByteBuffer[]        gather = new ByteBuffer[2];
+    ReadableByteChannel       stream;
+    FileChannel               file;
+    long                      position;
+    long                      remaining;
+    ByteBuffer                out;
+
+    boolean                   busy;
+    boolean                   abort;
+    boolean                   socket;      // holds a WebSocket place
+    int                       served;
+    long                      last = System.nanoTime();
+
+    Connection( SocketChannel channel, SelectionKey key )
+    {
+      this.channel = channel;
+      this.key     = key;
+    }
+  }
+
+
+  //===========================================================================
+
+  /** HTTP interface implementation */
+  public class Http implements IHttp
+  {
+    protected final String                    method;
+    protected final String                    path;
+    protected final String                    query;
+    protected final boolean                   http11;
+    protected       boolean                   keepAlive;
+    protected final Map<String,String>        headers = new HashMap<>();
+    protected       Map<String,List<String>>  parameters;
+    protected       byte[]                    body;
+
+    protected       Status                    status;
+    protected       Mime                      mime;
+    protected       String                    location;
+    protected       byte[]                    text;
+    protected       ReadableByteChannel       stream;
+    protected       long                      offset;
+    protected       long                      length;
+    protected       boolean                   upgrade;
+    protected       Content                   content;
+    protected final StringBuilder             extra   = new StringBuilder();
+
+    /** Parse request line and headers - header names lower-cased, as NanoHTTPD gives them */
+    protected Http( String head )
+    {
+      String[] lines = head.split( "\r\n" );
+      String[] line  = lines[0].split( " " );
+
+      if ( line.length != 3 || !line[2].startsWith( "HTTP/" ) )
+        throw new Refused( 400, "Bad Request", "Bad request line " + lines[0] );
+
+      int q = line[1].indexOf( '?' );
+
+      this.method = line[0];
+      this.path   = decode( q < 0 ? line[1] : line[1].substring( 0, q ) );
+      this.query  = q < 0 ? "" : line[1].substring( q + 1 );
+
+      for ( int i=1 ; i < lines.length ; i++ )
+      {
+        int colon = lines[i].indexOf( ':' );
+
+        if ( colon > 0 )
+          headers.put( lines[i].substring( 0, colon ).trim().toLowerCase( Locale.ENGLISH ), lines[i].substring( colon + 1 ).trim() );
+      }
+
+      String connection = headers.getOrDefault( "connection", "" ).toLowerCase( Locale.ENGLISH );
+
+      this.http11    = line[2].equals( "HTTP/1.1" );
+      this.keepAlive = http11 ? !connection.contains( "close" ) : connection.contains( "keep-alive" );
+    }
+
+    /** Length of request body - a body must have a Content-Length, of at most MAX_BODY */
+    protected int contentLength()
+    {
+      if ( headers.containsKey( "transfer-encoding" ) )
+        throw new Refused( 411, "Length Required", "Request body needs a Content-Length" );
+
+      long length;
+
+      try
+      {
+        length = Long.parseLong( headers.getOrDefault( "content-length", "0" ) );
+      }
+      catch ( NumberFormatException e )
+      {
+        length = -1;
+      }
+
+      if ( length < 0 )
+        throw new Refused( 400, "Bad Request", "Bad Content-Length " + headers.get( "content-length" ) );
+
+      if ( length > MAX_BODY )
+        throw new Refused( 413, "Payload Too Large", "Request body larger than " + MAX_BODY + " bytes" );
+
+      return (int) length;
+    }
+
+
+    @Override public String                    method     ()  { return method; }
+    @Override public Map<String, String>       headers    ()  { return headers; }
+    @Override public String                    path       ()  { return path; }
+
+    @Override public InputStream               inputStream()  { return new ByteArrayInputStream( body ); }
+    @Override public Reader                    reader     ()  { return new InputStreamReader( inputStream(), StandardCharsets.UTF_8 ); }
+
+    @Override public Map<String, List<String>> parameters ()
+    {
+      if ( parameters == null )
+      {
+        parameters = new HashMap<>();
+
+        for ( String p: query.split( "&" ) )
+          if ( !p.isEmpty() )
+          {
+            int eq = p.indexOf( '=' );
+
+            parameters.computeIfAbsent( decode( eq < 0 ? p : p.substring( 0, eq ) ).trim(), k -> new ArrayList<>() )
+                      .add( eq < 0 ? "" : decode( p.substring( eq + 1 ) ) );
+          }
+      }
+
+      return parameters;
+    }
+
+
+    protected void response( Status status, Mime mime, String msg )
+    {
+      close();
+
+      this.status   = status;
+      this.mime     = mime;
+      this.text     = msg.getBytes( StandardCharsets.UTF_8 );
+      this.location = null;
+      this.content  = null;
+      
+      extra.setLength( 0 );
+    }
+
+    @Override public void   status  ( int code, String message )  { response( Status.lookup( code ), Mime.HTML, message ); }
+    @Override public void   write   ( String text, Mime mime )    { response( Status.OK, mime, text ); }
+
+    @Override public void   write   ( InputStream in, long length, Mime mime )
+    {
+      response( Status.OK, (mime != null) ? mime : Mime.UNKNOWN, "" );
+
+      this.stream = Channels.newChannel( in );
+      this.length = length;
+    }
+
+    @Override public void   write   ( Path file, long offset, long length, Mime mime ) throws IOException
+    {
+      FileChannel channel = FileChannel.open( file );
+
+      try
+      {
+        response( offset > 0 || length < channel.size() ? Status.PARTIAL_CONTENT : Status.OK, (mime != null) ? mime : Mime.UNKNOWN, "" );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        channel.close();
+        throw e;
+      }
+
+      this.stream = channel;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override public void   write   ( Content content, Mime mime )
+    {
+      response( Status.OK, (mime != null) ? mime : Mime.UNKNOWN, "" );
+
+      this.content = content;
+    }
+
+    @Override public void   write   ( byte[] bytes, Mime mime )
+    {
+      response( Status.OK, (mime != null) ? mime : Mime.UNKNOWN, "" );
+
+      this.text = bytes;
+    }
+
+    @Override public void   redirect( String url )
+    {
+      response( Status.REDIRECT, Mime.HTML, "" );
+
+      this.location = url;
+    }
+
+    @Override public void   header  ( String name, String value )
+    {
+      if ( status == null )
+        status( 404 );
+
+      extra.append( name ).append( ": " ).append( value ).append( "\r\n" );
+    }
+
+    protected void upgrade()
+    {
+      this.upgrade = true;
+    }
+
+    protected void failed( Exception e )
+    {
+      response( Status.INTERNAL_ERROR, Mime.TEXT, e.toString() );
+    }
+
+    /** Close stream of a reply not sent */
+    protected void close()
+    {
+      if ( stream != null )
+        try
+        {
+          stream.close();
+        }
+        catch ( IOException ignored )
+        { // not sent anyway
+        }
+
+      stream = null;
+    }
+
+    /** Status line and headers, each ending CRLF - but for the body's length and the blank line */
+    protected StringBuilder head()
+    {
+      if ( status == null )
+        status( 404 );
+
+      StringBuilder sb = new StringBuilder( 160 );
+
+      sb.append( "HTTP/1.1 " ).append( status.getDescription() ).append( "\r\n" );
+      sb.append( "Content-Type: " ).append( mime.mimeType ).append( "\r\n" );
+
+      if ( location != null )
+        sb.append( "Location: " ).append( location ).append( "\r\n" );
+
+      sb.append( extra );
+      sb.append( "Connection: " ).append( keepAlive ? "keep-alive" : "close" ).append( "\r\n" );
+
+      return sb;
+    }
+
+    /**
+     * On the worker - write reply straight to the connection as content makes it, through this thread's ReplyWriter
+     * <p>
+     * Only HTTP/1.1 has chunks: to an HTTP/1.0 client, keep-alive or not, a body longer than a buffer is sent as it
+     * is and the connection closed to end it - so such replies always close, as do those content failed in.
+     */
+    protected void stream( Connection c ) throws IOException
+    {
+      if ( !http11 )
+        keepAlive = false;
+      
+      try ( ChannelOutput out = ChannelOutput.to( c.channel ) )
+      {
+        if ( !ReplyWriter.send( out, head().toString(), keepAlive, method.equals( "HEAD" ), content ) )
+          keepAlive = false;
+      }
+    }
+
+    /** Set connection up to write reply */
+    protected void reply( Connection c )
+    {
+      if ( upgrade )
+      {
+        String handshake = "HTTP/1.1 101 Switching Protocols\r\n"
+                         + "Upgrade: websocket\r\n"
+                         + "Connection: Upgrade\r\n"
+                         + "Sec-WebSocket-Accept: " + WebSocket.accept( headers.get( "sec-websocket-key" ) ) + "\r\n"
+                         + "\r\n";
+
+        c.gather[0] = ByteBuffer.wrap( handshake.getBytes( StandardCharsets.US_ASCII ) );
+        c.gather[1] = ByteBuffer.wrap( EMPTY );
+        return;
+      }
+
+      if ( content != null )
+      {
+        // written already
+        c.gather[0] = ByteBuffer.wrap( EMPTY );
+        c.gather[1] = ByteBuffer.wrap( EMPTY );
+        return;
+      }
+
+      boolean       head = method.equals( "HEAD" );
+      StringBuilder sb   = head();
+
+      sb.append( "Content-Length: " ).append( stream != null ? length : text.length ).append( "\r\n" );
+      sb.append( "\r\n" );
+
+      c.gather[0] = ByteBuffer.wrap( sb.toString().getBytes( StandardCharsets.US_ASCII ) );
+      c.gather[1] = ByteBuffer.wrap( head ? EMPTY : text );
+
+      if ( head )
+        close();
+      else
+      if ( stream != null )
+      {
+        c.stream    = stream;
+        c.file      = stream instanceof FileChannel ? (FileChannel) stream : null;
+        c.position  = offset;
+        c.remaining = length;
+      }
+    }
+  }
+
+  /** Blocking output to a non-blocking connection, for a worker streaming a reply - waits on a selector of its own */
+  static private final class ChannelOutput extends OutputStream
+  {
+    static private final ThreadLocal<ChannelOutput> OUTPUTS = ThreadLocal.withInitial( ChannelOutput::new );
+
+    private Selector      selector;
+    private SocketChannel channel;
+    private SelectionKey  key;
+
+    static ChannelOutput to( SocketChannel channel )
+    {
+      ChannelOutput out = OUTPUTS.get();
+
+      out.channel = channel;
+
+      return out;
+    }
+
+    @Override public void write( int b ) throws IOException
+    {
+      write( new byte[]{ (byte) b }, 0, 1 );
+    }
+
+    @Override public void write( byte[] b, int off, int len ) throws IOException
+    {
+      ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+
+      while ( buffer.hasRemaining() )
+        if ( channel.write( buffer ) == 0 )
+        {
+          // socket full - wait for client to read
+          if ( key == null )
+          {
+            if ( selector == null )
+              selector = Selector.open();
+
+            key = channel.register( selector, SelectionKey.OP_WRITE );
+          }
+
+          if ( selector.select( SOCKET_READ_TIMEOUT ) == 0 )
+            throw new SocketTimeoutException( "Client not reading" );
+
+          selector.selectedKeys().clear();
+        }
+    }
+
+    /** Off this worker's selector - the connection stays open */
+    @Override public void close() throws IOException
+    {
+      if ( key != null )
+      {
+        key.cancel();
+        selector.selectNow();
+      }
+
+      key     = null;
+      channel = null;
+    }
+  }
+
+  static private String decode( String s )
+  {
+    return URLDecoder.decode( s, StandardCharsets.UTF_8 );
+  }
+
+}
@@ -0,0 +1,292 @@
+package com.github.drichm.ev3.server.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer encoding UTF-8 into a fixed buffer that is sent as it fills - kept by each thread for reply after reply, so
+ * a streamed reply of any length costs one buffer
+ * <p>
+ * The reply's head goes out with the first buffer: a body that fits in one buffer is sent with a Content-Length,
+ * a longer one chunked - or just as it is, on a connection closed after the reply.
+ * <p>
+ * So content that fails within its first buffer is replied 500 instead, while one failing later can only cut its
+ * reply short - without the last chunk, so a chunked reply is seen to be incomplete.
+ */
+class ReplyWriter extends Writer
+{
+  //===========================================================================
+
+  /** Body bytes sent per write */
+  static public final int SIZE = 8 * 1024;
+  
+  static private final ThreadLocal<ReplyWriter> WRITERS = ThreadLocal.withInitial( ReplyWriter::new );
+
+  /**
+   * This thread's writer, ready for a reply
+   * 
+   * @param out connection
+   * @param head status line and headers, each ending CRLF - without the blank line
+   * @param chunked chunk a body longer than a buffer - false if connection is closed after the reply
+   */
+  static ReplyWriter start( OutputStream out, String head, boolean chunked )
+  {
+    ReplyWriter w = WRITERS.get();
+    
+    w.out     = out;
+    w.head    = head;
+    w.chunked = chunked;
+    w.started = false;
+    w.count   = 0;
+    w.high    = 0;
+    
+    return w;
+  }
+  
+  /**
+   * Send reply made by content through this thread's writer - for a HEAD request just the head, with no
+   * Content-Length as the body's is not known without making it
+   * 
+   * @param head status line and headers, each ending CRLF - without the blank line
+   * @param chunked chunk a body longer than a buffer - false if connection is closed after the reply
+   * @return false if content failed - replied 500 if nothing was sent yet, else cut short - and the connection
+   *         must be closed
+   */
+  static boolean send( OutputStream out, String head, boolean chunked, boolean headOnly, IHttp.Content content ) throws IOException
+  {
+    if ( headOnly )
+    {
+      out.write( (head + "\r\n").getBytes( StandardCharsets.US_ASCII ) );
+      out.flush();
+      return true;
+    }
+    
+    ReplyWriter w = start( out, head, chunked );
+    
+    try
+    {
+      content.writeTo( w );
+      w.finish();
+      return true;
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      e.printStackTrace();
+      
+      if ( w.started )
+        return false;
+      
+      byte[] body = e.toString().getBytes( StandardCharsets.UTF_8 );
+      
+      out.write( ("HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n").getBytes( StandardCharsets.US_ASCII ) );
+      out.write( body );
+      out.flush();
+      
+      return false;
+    }
+    finally
+    {
+      w.out  = null;
+      w.head = null;
+    }
+  }
+  
+  
+  //===========================================================================
+
+  /** Body from SIZE, with room before it for head and chunk size, and after it for chunk ends - so one write each */
+  private final byte[]  buffer = new byte[ SIZE + SIZE + 7 ];
+  private int           count;
+  
+  /** High surrogate waiting for its low */
+  private char          high;
+  
+  private OutputStream  out;
+  private String        head;
+  private boolean       chunked;
+  private boolean       started;
+  
+  
+  //===========================================================================
+
+  @Override public void write( int c ) throws IOException
+  {
+    put( (char) c );
+  }
+
+  @Override public void write( char[] c, int off, int len ) throws IOException
+  {
+    for ( int i=off, n=off+len ; i < n ; i++ )
+      put( c[i] );
+  }
+
+  @Override public void write( String s, int off, int len ) throws IOException
+  {
+    for ( int i=off, n=off+len ; i < n ; i++ )
+      put( s.charAt( i ) );
+  }
+  
+  /** Does nothing - finish() ends the reply */
+  @Override public void flush()
+  {
+  }
+  
+  /** Same as finish() */
+  @Override public void close() throws IOException
+  {
+    finish();
+  }
+  
+  
+  private void put( char c ) throws IOException
+  {
+    if ( count > SIZE - 4 )
+      spill( false );
+    
+    int at = SIZE + count;
+    
+    if ( high != 0 )
+    {
+      char h = high;
+      
+      high = 0;
+      
+      if ( Character.isLowSurrogate( c ) )
+      {
+        int cp = Character.toCodePoint( h, c );
+        
+        buffer[ at   ] = (byte) (0xF0 | (cp >> 18));
+        buffer[ at+1 ] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buffer[ at+2 ] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buffer[ at+3 ] = (byte) (0x80 | (cp & 0x3F));
+        count += 4;
+        return;
+      }
+      
+      // unpaired
+      buffer[ at ] = '?';
+      count++;
+      
+      if ( count > SIZE - 4 )
+        spill( false );
+      
+      at = SIZE + count;
+    }
+    
+    if ( c < 0x80 )
+    {
+      buffer[ at ] = (byte) c;
+      count += 1;
+    }
+    else
+    if ( c < 0x800 )
+    {
+      buffer[ at   ] = (byte) (0xC0 | (c >> 6));
+      buffer[ at+1 ] = (byte) (0x80 | (c & 0x3F));
+      count += 2;
+    }
+    else
+    if ( Character.isHighSurrogate( c ) )
+      high = c;
+    else
+    if ( Character.isLowSurrogate( c ) )
+    {
+      buffer[ at ] = '?';
+      count += 1;
+    }
+    else
+    {
+      buffer[ at   ] = (byte) (0xE0 | (c >> 12));
+      buffer[ at+1 ] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buffer[ at+2 ] = (byte) (0x80 | (c & 0x3F));
+      count += 3;
+    }
+  }
+
+  /** Send buffered body - as a chunk if chunked, after the head if not sent yet, and with the last chunk if last */
+  private void spill( boolean last ) throws IOException
+  {
+    int start = SIZE;
+    int end   = SIZE + count;
+    
+    if ( chunked && count > 0 )
+    {
+      start = prepend( Integer.toHexString( count ) + "\r\n", start );
+      end   = append ( "\r\n", end );
+    }
+    
+    if ( chunked && last )
+      end = append( "0\r\n\r\n", end );
+    
+    if ( !started )
+    {
+      start   = prepend( head + (chunked ? "Transfer-Encoding: chunked\r\n\r\n" : "\r\n"), start );
+      started = true;
+    }
+    
+    out.write( buffer, start, end - start );
+    
+    count = 0;
+  }
+  
+  /** Send the rest of the reply */
+  public void finish() throws IOException
+  {
+    if ( high != 0 )
+    {
+      high = 0;
+      put( '?' );
+    }
+    
+    if ( !started )
+    {
+      // all in one buffer - plain reply
+      started = true;
+      
+      int start = prepend( head + "Content-Length: " + count + "\r\n\r\n", SIZE );
+      
+      out.write( buffer, start, SIZE + count - start );
+    }
+    else
+    if ( count > 0 || chunked )
+      spill( true );
+    
+    out.flush();
+
+    out  = null;
+    head = null;
+  }
+  
+  /** Put ASCII text in buffer before end - sent straight away if too long for the room there - returning its start */
+  private int prepend( String text, int end ) throws IOException
+  {
+    int n = text.length();
+    
+    if ( n > end )
+    {
+      out.write( text.getBytes( StandardCharsets.US_ASCII ) );
+      return end;
+    }
+    
+    for ( int i=0 ; i < n ; i++ )
+      buffer[ end - n + i ] = (byte) text.charAt( i );
+    
+    return end - n;
+  }
+
+  /** Put ASCII text in buffer from start, returning its end */
+  private int append( String text, int start )
+  {
+    for ( int i=0 ; i < text.length() ; i++ )
+      buffer[ start + i ] = (byte) text.charAt( i );
+    
+    return start + text.length();
+  }
+
+}
@@ -0,0 +1,430 @@
+package com.github.drichm.ev3.server.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server side of an RFC 6455 WebSocket on an upgraded HTTP connection, handing messages to a servlet
+ * <p>
+ * Text messages only - binary messages are read and dropped. The HTTP server's socket read timeout is kept:
+ * timing out between frames sends a ping instead of closing, so idle sockets stay open (and are checked).
+ * <p>
+ * {@link #offer(byte[])}ed frames are queued and written by a shared writer thread, so a pushing thread never
+ * blocks. A socket whose queue fills, or whose current write has taken longer than {@link #WRITE_TIMEOUT}, is
+ * dropped - its connection closed without a close frame.
+ * 
+ * @see https://tools.ietf.org/html/rfc6455
+ */
+public class WebSocket implements ISocket
+{
+  //===========================================================================
+
+  static public final int    CONTINUATION = 0x0;
+  static public final int    TEXT         = 0x1;
+  static public final int    BINARY       = 0x2;
+  static public final int    CLOSE        = 0x8;
+  static public final int    PING         = 0x9;
+  static public final int    PONG         = 0xA;
+  
+  /** Close codes */
+  static public final int    NORMAL       = 1000;
+  static public final int    PROTOCOL     = 1002;
+  static public final int    TOO_BIG      = 1009;
+  static public final int    NO_STATUS    = 1005;
+  static public final int    ABNORMAL     = 1006;
+  
+  /** Largest message accepted from a client */
+  static public final int    MAX_MESSAGE  = 64 * 1024;
+  
+  /** Frames queued for a socket before it is dropped as too slow */
+  static public final int    QUEUE         = 64;
+  
+  /** Longest one write may take before the socket is dropped as stalled */
+  static public final long   WRITE_TIMEOUT = TimeUnit.SECONDS.toNanos( 5 );
+  
+  /** Write queued frames - a thread per socket with frames queued, idle threads reused */
+  static private final ExecutorService WRITERS = Executors.newCachedThreadPool( r ->
+  {
+    Thread t = new Thread( r, "ev3-websocket-out" );
+    t.setDaemon( true );
+    return t;
+  } );
+
+  static private final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  
+  
+  /** true if request headers (lower-case names, as NanoHTTPD gives them) ask for a WebSocket upgrade */
+  static public boolean requested( Map<String,String> headers )
+  {
+    String upgrade    = headers.get( "upgrade" );
+    String connection = headers.get( "connection" );
+
+    return upgrade    != null && upgrade.equalsIgnoreCase( "websocket" )
+        && connection != null && connection.toLowerCase().contains( "upgrade" )
+        && headers.get( "sec-websocket-key" ) != null;
+  }
+
+  /** Sec-WebSocket-Accept reply for client's Sec-WebSocket-Key */
+  static public String accept( String key )
+  {
+    try
+    {
+      MessageDigest sha1 = MessageDigest.getInstance( "SHA-1" );
+
+      return Base64.getEncoder().encodeToString( sha1.digest( (key.trim() + GUID).getBytes( StandardCharsets.US_ASCII ) ) );
+    }
+    catch ( NoSuchAlgorithmException e )
+    {
+      throw new IllegalStateException( "Every JRE has SHA-1", e );
+    }
+  }
+  
+  /** Unmasked, unfragmented server frame */
+  static public byte[] frame( int opcode, byte[] payload )
+  {
+    int    length = payload.length;
+    int    header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+    byte[] frame  = new byte[ header + length ];
+
+    frame[0] = (byte) (0x80 | opcode);
+
+    if ( header == 2 )
+      frame[1] = (byte) length;
+    else
+    if ( header == 4 )
+    {
+      frame[1] = 126;
+      frame[2] = (byte) (length >>> 8);
+      frame[3] = (byte) length;
+    }
+    else
+    {
+      frame[1] = 127;
+
+      for ( int i=0 ; i < 8 ; i++ )
+        frame[2+i] = (byte) ((long) length >>> (56 - 8*i));
+    }
+
+    System.arraycopy( payload, 0, frame, header, length );
+    
+    return frame;
+  }
+  
+  
+  //===========================================================================
+
+  private final IServlet        servlet;
+  private final DataInputStream in;
+  private final OutputStream    out;
+  
+  private volatile boolean      open = true;
+  
+  /** Frames offered, not yet written, and whether a writer is draining them */
+  private final ArrayBlockingQueue<byte[]> queue    = new ArrayBlockingQueue<>( QUEUE );
+  private final AtomicBoolean              draining = new AtomicBoolean();
+  
+  /** System.nanoTime() the write in progress began, 0 if none */
+  private volatile long         writing;
+  
+  public WebSocket( IServlet servlet, InputStream in, OutputStream out )
+  {
+    this.servlet = servlet;
+    this.in      = new DataInputStream( in );
+    this.out     = out;
+  }
+
+  
+  //===========================================================================
+
+  @Override public void send( String text ) throws IOException
+  {
+    send( frame( TEXT, text.getBytes( StandardCharsets.UTF_8 ) ) );
+  }
+
+  @Override public void send( byte[] frame ) throws IOException
+  {
+    if ( !open )
+      throw new IOException( "WebSocket closed" );
+
+    synchronized ( out )
+    {
+      try
+      {
+        writing = System.nanoTime();
+        
+        out.write( frame );
+        out.flush();
+      }
+      catch ( IOException e )
+      {
+        open = false;
+        throw e;
+      }
+      finally
+      {
+        writing = 0;
+      }
+    }
+  }
+
+  @Override public boolean offer( byte[] frame )
+  {
+    if ( !open )
+      return false;
+    
+    long began = writing;
+    
+    if ( (began != 0 && System.nanoTime() - began > WRITE_TIMEOUT) || !queue.offer( frame ) )
+    {
+      abort();
+      return false;
+    }
+    
+    if ( draining.compareAndSet( false, true ) )
+      WRITERS.execute( this::drain );
+    
+    return true;
+  }
+  
+  /** Write queued frames until none are left - writer thread */
+  private void drain()
+  {
+    try
+    {
+      for ( byte[] frame = queue.poll() ; frame != null ; frame = queue.poll() )
+        send( frame );
+    }
+    catch ( IOException e )
+    {
+      queue.clear();
+    }
+    finally
+    {
+      draining.set( false );
+    }
+    
+    // offered after the last poll, but saw draining still set
+    if ( open && !queue.isEmpty() && draining.compareAndSet( false, true ) )
+      WRITERS.execute( this::drain );
+  }
+  
+  /** Drop a socket that cannot keep up - closing the stream fails any blocked write, and the read in run() */
+  private void abort()
+  {
+    open = false;
+    queue.clear();
+
+    try
+    {
+      out.close();
+    }
+    catch ( IOException ignored )
+    { // closing anyway
+    }
+  }
+
+  @Override public boolean isOpen()  { return open; }
+  
+  @Override public void close()
+  {
+    close( NORMAL );
+  }
+
+  private void close( int code )
+  {
+    if ( !open )
+      return;
+
+    try
+    {
+      send( frame( CLOSE, new byte[]{ (byte) (code >>> 8), (byte) code } ) );
+    }
+    catch ( IOException ignored )
+    { // going anyway
+    }
+
+    open = false;
+  }
+  
+  
+  //===========================================================================
+
+  /** Read and dispatch messages until the socket closes - runs on the connection's thread */
+  public void run()
+  {
+    int    code   = ABNORMAL;
+    String reason = "";
+    
+    try
+    {
+      servlet.onConnect( this );
+
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      int                   type    = -1;   // opcode of message being assembled, -1 if none
+      
+      while ( open )
+      {
+        int b0 = first();
+        
+        if ( b0 < 0 )
+          break;
+
+        int     b1     = in.readUnsignedByte();
+        boolean fin    = (b0 & 0x80) != 0;
+        int     opcode = b0 & 0x0F;
+        long    length = b1 & 0x7F;
+
+        if ( length == 126 )
+          length = in.readUnsignedShort();
+        else
+        if ( length == 127 )
+          length = in.readLong();
+
+        if ( (b1 & 0x80) == 0 || (opcode >= CLOSE && (length > 125 || !fin)) )
+        {
+          close( code = PROTOCOL );
+          break;
+        }
+        
+        if ( length < 0 || length + message.size() > MAX_MESSAGE )
+        {
+          close( code = TOO_BIG );
+          break;
+        }
+        
+        byte[] payload = payload( (int) length );
+        
+        switch ( opcode )
+        {
+          case CLOSE:
+            code   = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : NO_STATUS;
+            reason = payload.length >  2 ? new String( payload, 2, payload.length - 2, StandardCharsets.UTF_8 ) : "";
+            close( code == NO_STATUS ? NORMAL : code );
+            break;
+
+          case PING:
+            send( frame( PONG, payload ) );
+            break;
+
+          case PONG:
+            break;
+            
+          case TEXT:
+          case BINARY:
+          case CONTINUATION:
+            if ( (opcode == CONTINUATION) != (type >= 0) )
+            {
+              close( code = PROTOCOL );
+              break;
+            }
+            
+            if ( opcode != CONTINUATION )
+              type = opcode;
+            
+            message.write( payload );
+            
+            if ( fin )
+            {
+              if ( type == TEXT )
+                deliver( new String( message.toByteArray(), StandardCharsets.UTF_8 ) );
+
+              message.reset();
+              type = -1;
+            }
+            break;
+            
+          default:
+            close( code = PROTOCOL );
+        }
+      }
+    }
+    catch ( IOException e )
+    {
+      open = false;
+      error( e );
+    }
+    finally
+    {
+      open = false;
+
+      try
+      {
+        servlet.onClose( this, code, reason );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  
+  /** First byte of next frame, pinging the client each time the read times out while idle - -1 at end of stream */
+  private int first() throws IOException
+  {
+    while ( true )
+      try
+      {
+        return in.read();
+      }
+      catch ( SocketTimeoutException e )
+      {
+        // nothing consumed, so nothing lost
+        send( frame( PING, new byte[0] ) );
+      }
+  }
+  
+  /** Read and unmask payload */
+  private byte[] payload( int length ) throws IOException
+  {
+    byte[] mask    = new byte[ 4 ];
+    byte[] payload = new byte[ length ];
+    
+    in.readFully( mask );
+    in.readFully( payload );
+    
+    for ( int i=0 ; i < length ; i++ )
+      payload[i] ^= mask[ i & 3 ];
+    
+    return payload;
+  }
+  
+  private void deliver( String text )
+  {
+    try
+    {
+      servlet.onMessage( this, text );
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      error( e );
+    }
+  }
+
+  private void error( Throwable t )
+  {
+    try
+    {
+      servlet.onError( this, t );
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      e.printStackTrace();
+    }
+  }
+
+}
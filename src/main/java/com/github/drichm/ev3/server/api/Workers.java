@@ -0,0 +1,273 @@
+package com.github.drichm.ev3.server.api;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import fi.iki.elonen.NanoHTTPD.AsyncRunner;
+import fi.iki.elonen.NanoHTTPD.ClientHandler;
+
+/**
+ * Runs NanoHTTPD connections with a hard ceiling - at most so many at once, so many more waiting, and the rest
+ * turned away (their sockets closed) rather than each getting a thread of its own
+ * <p>
+ * Uses a bounded pool of platform threads, or a virtual thread per connection where the JDK has them (found by
+ * reflection, so this still runs on older JDKs). A connection holds its worker for as long as it is kept alive.
+ * One waiting longer than its time limit for a worker is turned away.
+ * <p>
+ * A connection that becomes a WebSocket ({@link #upgrade()}) gives its HTTP place back and counts against a separate
+ * limit on WebSockets instead, so long-lived sockets do not starve HTTP.
+ */
+public class Workers implements AsyncRunner
+{
+  //===========================================================================
+
+  static public class Report
+  {
+    public final String mode;
+    public final int    threads;
+    public final int    queue;
+    public final int    active;
+    public final int    queued;
+    public final int    websockets;
+    public final long   rejected;
+    public final long   timedOut;
+    public final long   served;
+    
+    Report( Workers w )
+    {
+      this.mode       = w.virtual ? "virtual" : "platform";
+      this.threads    = w.threads;
+      this.queue      = w.queue;
+      this.active     = w.active.get();
+      this.queued     = w.threads + w.queue - w.admitted.availablePermits() - this.active;
+      this.websockets = w.sockets - w.websockets.availablePermits();
+      this.rejected   = w.rejected.sum();
+      this.timedOut   = w.timedOut.sum();
+      this.served     = w.served  .sum();
+    }
+  }
+  
+  
+  
+  /** Places held by the connection on a worker thread */
+  static private final class Lease
+  {
+    boolean http = true;
+    boolean websocket;
+  }
+  
+  
+  //===========================================================================
+
+  public final int                  threads;
+  public final int                  queue;
+  public final int                  sockets;
+  public final long                 waitNanos;
+  public final boolean              virtual;
+  
+  private final ExecutorService     executor;
+  
+  /** Connections admitted (running or waiting), at most threads of them running, and WebSockets open */
+  private final Semaphore           admitted;
+  private final Semaphore           running;
+  private final Semaphore           websockets;
+  private final AtomicInteger       active   = new AtomicInteger();
+  private final LongAdder           rejected = new LongAdder();
+  private final LongAdder           timedOut = new LongAdder();
+  private final LongAdder           served   = new LongAdder();
+  
+  /** Lease of the connection this worker thread is running */
+  private final ThreadLocal<Lease>  lease    = new ThreadLocal<>();
+  
+  /** Connections open, for closeAll */
+  private final Set<ClientHandler>  open     = ConcurrentHashMap.newKeySet();
+  
+  
+  /**
+   * @param threads most HTTP connections served at once
+   * @param queue most HTTP connections waiting for a worker
+   * @param waitMillis longest a connection waits for a worker before it is turned away
+   * @param sockets most WebSockets open at once, each on a worker of its own
+   * @param virtual use virtual threads if the JDK has them
+   */
+  public Workers( int threads, int queue, long waitMillis, int sockets, boolean virtual )
+  {
+    ExecutorService vts = virtual ? virtualThreads() : null;
+
+    this.threads    = threads;
+    this.queue      = queue;
+    this.sockets    = sockets;
+    this.waitNanos  = TimeUnit.MILLISECONDS.toNanos( waitMillis );
+    this.virtual    = vts != null;
+    this.admitted   = new Semaphore( threads + queue );
+    this.running    = new Semaphore( threads );
+    this.websockets = new Semaphore( sockets );
+    
+    if ( vts != null )
+      this.executor = vts;
+    else
+    {
+      // a thread for every connection admitted, so a waiting one can time out, and for each WebSocket - idle ones go.
+      // admitted bounds the tasks, so the queue only holds any for the moment a finished thread takes to come free
+      int                size = threads + queue + sockets;
+      AtomicInteger      n    = new AtomicInteger();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor( size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                        r -> {
+                                                          Thread t = new Thread( r, "ev3-http-" + n.incrementAndGet() );
+                                                          t.setDaemon( true );
+                                                          return t;
+                                                        } );
+      pool.allowCoreThreadTimeOut( true );
+      
+      this.executor = pool;
+    }
+  }
+  
+  /** Executor starting a virtual thread per task, null if this JDK has none */
+  static private ExecutorService virtualThreads()
+  {
+    try
+    {
+      return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+    }
+    catch ( ReflectiveOperationException | RuntimeException e )
+    {
+      return null;
+    }
+  }
+
+  
+  //===========================================================================
+
+  public Report report()  { return new Report( this ); }
+  
+  
+  @Override public void exec( ClientHandler client )
+  {
+    if ( !admitted.tryAcquire() )
+    {
+      reject( client );
+      return;
+    }
+    
+    open.add( client );
+    
+    long queued = System.nanoTime();
+    
+    try
+    {
+      executor.execute( () -> run( client, queued ) );
+    }
+    catch ( RejectedExecutionException e )
+    {
+      admitted.release();
+      open.remove( client );
+      reject( client );
+    }
+  }
+  
+  private void run( ClientHandler client, long queued )
+  {
+    if ( !acquire( queued ) )
+    {
+      admitted.release();
+      open.remove( client );
+      timedOut.increment();
+      reject( client );
+      return;
+    }
+    
+    Lease l = new Lease();
+    
+    lease.set( l );
+    active.incrementAndGet();
+
+    try
+    {
+      client.run();
+    }
+    finally
+    {
+      lease.remove();
+      
+      if ( l.http )
+      {
+        active.decrementAndGet();
+        running .release();
+        admitted.release();
+      }
+      
+      if ( l.websocket )
+        websockets.release();
+      
+      served.increment();
+    }
+  }
+  
+  /** Wait for a running place, for what is left of the time limit since queued */
+  private boolean acquire( long queued )
+  {
+    try
+    {
+      return running.tryAcquire( waitNanos - (System.nanoTime() - queued), TimeUnit.NANOSECONDS );
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+  
+  
+  /**
+   * The connection on this worker thread becomes a WebSocket: move it from the HTTP limits to the WebSocket one
+   * 
+   * @return false if as many WebSockets as allowed are already open - the connection stays HTTP
+   */
+  public boolean upgrade()
+  {
+    Lease l = lease.get();
+    
+    if ( l == null || !l.http )
+      return l != null;
+    
+    if ( !websockets.tryAcquire() )
+      return false;
+    
+    l.http      = false;
+    l.websocket = true;
+    
+    active.decrementAndGet();
+    running .release();
+    admitted.release();
+    
+    return true;
+  }
+  
+  private void reject( ClientHandler client )
+  {
+    rejected.increment();
+    client.close();
+  }
+
+  @Override public void closed( ClientHandler client )
+  {
+    open.remove( client );
+  }
+
+  @Override public void closeAll()
+  {
+    for ( ClientHandler client: open.toArray( new ClientHandler[0] ) )
+      client.close();
+  }
+
+}
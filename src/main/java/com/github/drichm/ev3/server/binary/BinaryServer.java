@@ -0,0 +1,609 @@
+package com.github.drichm.ev3.server.binary;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.Sampler;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Result;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+
+/**
+ * Binary protocol listener for a master (e.g. a Raspberry Pi) - see {@link Protocol} for the wire format
+ * <p>
+ * One NIO thread serves all connections: it streams new samples of each connection's subscribed channels every
+ * push period, and runs motor commands as they arrive, setpoints first and then commands back-to-back. Buffers are
+ * direct and per connection, and neither streaming nor commands allocate per frame.
+ * <p>
+ * Motor handles are per connection, at most {@link #MAX_MOTORS} each. As a repository {@link EV3Repository.Listener},
+ * the server frees the handles of a motor that is unplugged, so commands to that handle fail until it is looked up again.
+ * <p>
+ * Each subscription is a use of its shared {@link Sampler.Channel}, released on unsubscribe or close. A channel the
+ * sampler drops (its device unplugged) is unsubscribed, and the client told by a CHANNEL frame with a failed result.
+ * <p>
+ * A client that does not keep up is sent nothing more until its backlog drains - samples overwritten meanwhile
+ * are counted as dropped.
+ */
+public class BinaryServer implements EV3Repository.Listener
+{
+  //===========================================================================
+
+  /** Per-connection buffer sizes - no frame may be larger than IN */
+  static public final int IN  = 4096;
+  static public final int OUT = 64 * 1024;
+  
+  /** Most channels and motors per connection, and writes per command */
+  static public final int MAX_CHANNELS = 64;
+  static public final int MAX_MOTORS   = 16;
+  static public final int MAX_WRITES   = 32;
+  
+  
+  static public class Report
+  {
+    public final int  port;
+    public final int  connections;
+    public final long framesIn;
+    public final long framesOut;
+    public final long bytesOut;
+    public final long dropped;
+    
+    Report( BinaryServer s )
+    {
+      this.port        = s.port;
+      this.connections = s.connections;
+      this.framesIn    = s.framesIn;
+      this.framesOut   = s.framesOut;
+      this.bytesOut    = s.bytesOut;
+      this.dropped     = s.dropped;
+    }
+  }
+  
+  
+  /** One client - selector thread only */
+  private class Connection
+  {
+    final SocketChannel     channel;
+    final SelectionKey      key;
+    final ByteBuffer        in   = ByteBuffer.allocateDirect( IN  );
+    final ByteBuffer        out  = ByteBuffer.allocateDirect( OUT );
+    final long              epoch = System.nanoTime();
+    
+    /** Subscribed channels, and sequence of next sample to send of each */
+    final Sampler.Channel[] channels = new Sampler.Channel[ MAX_CHANNELS ];
+    final long[]            next     = new long[ MAX_CHANNELS ];
+    int                     count;
+    
+    /** Motors by handle, null if free - and handle reader for commands */
+    final DeviceNodeInstance[] motors  = new DeviceNodeInstance[ MAX_MOTORS ];
+    final Commands.Motors      handles = this::handle;
+    
+    Connection( SocketChannel channel, SelectionKey key )
+    {
+      this.channel = channel;
+      this.key     = key;
+    }
+    
+    /** Motor for handle read from frame, null if none */
+    private DeviceNodeInstance handle( ByteBuffer in )
+    {
+      long handle = Protocol.getVarint( in );
+      
+      return handle >= 0 && handle < MAX_MOTORS ? motors[ (int) handle ] : null;
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final int           port;
+  public final EV3Repository repo;
+  public final Sampler       sampler;
+  public final long          pushNanos;
+  
+  private volatile Thread    thread;
+  private Selector           selector;
+  
+  /** Open connections - selector thread only */
+  private Connection[]       open = {};
+  
+  /** Command being run - selector thread only */
+  private final Commands     commands = new Commands( MAX_WRITES );
+  
+  /** Motors unplugged, to be freed by the selector thread */
+  private final Queue<DeviceNodeInstance> unplugged = new ConcurrentLinkedQueue<>();
+  
+  /** Counters */
+  private volatile int       connections;
+  private volatile long      framesIn;
+  private volatile long      framesOut;
+  private volatile long      bytesOut;
+  private volatile long      dropped;
+  
+  private final Consumer<SelectionKey> ready = this::ready;
+
+  
+  public BinaryServer( int port, EV3Repository repo, Sampler sampler, long pushNanos )
+  {
+    this.port      = port;
+    this.repo      = repo;
+    this.sampler   = sampler;
+    this.pushNanos = pushNanos;
+  }
+
+  
+  //===========================================================================
+
+  public Report report()  { return new Report( this ); }
+  
+  /** Listen on port, on a daemon thread */
+  public synchronized void start() throws IOException
+  {
+    if ( thread != null )
+      return;
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+
+    server.bind( new InetSocketAddress( port ) );
+    server.configureBlocking( false );
+    
+    selector = Selector.open();
+    server.register( selector, SelectionKey.OP_ACCEPT );
+    
+    thread = new Thread( this::loop, "ev3-binary" );
+    thread.setDaemon( true );
+    thread.start();
+    
+    System.out.println( "Binary protocol @ port " + port );
+  }
+  
+  public synchronized void stop()
+  {
+    thread = null;
+
+    if ( selector != null )
+      selector.wakeup();
+  }
+  
+  /** Free the handles of an unplugged motor, on the selector thread */
+  @Override public void removed( DeviceNodeInstance node )
+  {
+    if ( !node.type.equals( Tacho.CLASS ) )
+      return;
+
+    unplugged.add( node );
+
+    Selector s = selector;
+    
+    if ( s != null )
+      s.wakeup();
+  }
+  
+  
+  //===========================================================================
+
+  private void loop()
+  {
+    Thread me   = Thread.currentThread();
+    long   push = System.nanoTime() + pushNanos;
+    
+    try
+    {
+      while ( thread == me )
+      {
+        long wait = push - System.nanoTime();
+
+        if ( wait > 0 )
+          selector.select( ready, Math.max( 1, TimeUnit.NANOSECONDS.toMillis( wait ) ) );
+        else
+        {
+          selector.selectNow( ready );
+
+          for ( Connection c: open )
+            push( c );
+
+          push = System.nanoTime() + pushNanos;
+        }
+        
+        for ( DeviceNodeInstance node = unplugged.poll() ; node != null ; node = unplugged.poll() )
+          for ( Connection c: open )
+            for ( int i=0 ; i < MAX_MOTORS ; i++ )
+              if ( node.equals( c.motors[i] ) )
+                c.motors[i] = null;
+      }
+    }
+    catch ( IOException e )
+    {
+      e.printStackTrace();
+    }
+    finally
+    {
+      for ( SelectionKey key: selector.keys() )
+        close( key );
+
+      try
+      {
+        selector.close();
+      }
+      catch ( IOException ignored )
+      { // going anyway
+      }
+    }
+  }
+  
+  private void ready( SelectionKey key )
+  {
+    try
+    {
+      if ( key.isAcceptable() )
+        accept( key );
+      else
+      {
+        Connection c = (Connection) key.attachment();
+        
+        if ( key.isReadable() )
+          read( c );
+        
+        if ( key.isValid() && key.isWritable() )
+          flush( c );
+      }
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      // protocol error or connection gone
+      close( key );
+    }
+  }
+  
+  private void accept( SelectionKey key ) throws IOException
+  {
+    SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+    
+    if ( channel == null )
+      return;
+
+    channel.configureBlocking( false );
+    channel.socket().setTcpNoDelay( true );
+    
+    SelectionKey ck = channel.register( selector, SelectionKey.OP_READ );
+    
+    Connection c = new Connection( channel, ck );
+
+    ck.attach( c );
+    
+    open        = Arrays.copyOf( open, open.length + 1 );
+    open[ open.length - 1 ] = c;
+    connections = open.length;
+  }
+  
+  private void close( SelectionKey key )
+  {
+    Object c = key.attachment();
+    
+    open        = Arrays.stream( open ).filter( o -> o != c ).toArray( Connection[]::new );
+    connections = open.length;
+    
+    if ( c instanceof Connection )
+      for ( int i=0 ; i < ((Connection) c).count ; i++ )
+        sampler.release( ((Connection) c).channels[i] );
+    
+    key.attach( null );
+    key.cancel();
+
+    try
+    {
+      key.channel().close();
+    }
+    catch ( IOException ignored )
+    { // gone already
+    }
+  }
+  
+  
+  //===========================================================================
+  // Reading frames
+
+  private void read( Connection c ) throws IOException
+  {
+    ByteBuffer in = c.in;
+    
+    if ( c.channel.read( in ) < 0 )
+      throw new IOException( "Closed by client" );
+    
+    in.flip();
+    
+    while ( in.remaining() >= 2 )
+    {
+      int length = in.getShort( in.position() ) & 0xFFFF;
+      
+      if ( length == 0 || length > IN - 2 )
+        throw new IllegalArgumentException( "Bad frame length " + length );
+      
+      if ( in.remaining() < 2 + length )
+        break;
+
+      int end   = in.position() + 2 + length;
+      int limit = in.limit();
+      
+      in.position( in.position() + 2 ).limit( end );
+      
+      try
+      {
+        frame( c, in.get(), in );
+      }
+      catch ( BufferUnderflowException e )
+      {
+        throw new IllegalArgumentException( "Frame too short" );
+      }
+
+      in.limit( limit ).position( end );
+      framesIn = framesIn + 1;
+    }
+    
+    in.compact();
+    
+    flush( c );
+  }
+  
+  private void frame( Connection c, byte type, ByteBuffer in )
+  {
+    switch ( type )
+    {
+      case Protocol.SUBSCRIBE:   subscribe  ( c, Protocol.getString( in ) );       break;
+      case Protocol.UNSUBSCRIBE: unsubscribe( c, (int) Protocol.getVarint( in ) ); break;
+      case Protocol.MOTOR:       motor      ( c, Protocol.getString( in ) );       break;
+      case Protocol.COMMAND:     command    ( c, in );                             break;
+      
+      default:
+        throw new IllegalArgumentException( "Unknown frame type " + type );
+    }
+  }
+
+  
+  private void subscribe( Connection c, String path )
+  {
+    int                last = path.lastIndexOf( '/' );
+    DeviceNodeInstance node = last <= 0 ? null : DeviceNodeInstance.parse( path.substring( 0, last ) );
+    AttributeInstance  attr = node == null ? null : repo.sysfs.attribute( node, path.substring( last + 1 ) );
+    Sampler.Channel    ch   = attr == null ? null : sampler.channel( node, attr );
+    
+    // subscribed already - no second use
+    if ( ch == null || indexOf( c, ch.id ) < 0 )
+    {
+      ch = null;
+      
+      if ( attr != null && c.count < MAX_CHANNELS )
+        ch = sampler.add( node, attr );
+      
+      if ( ch != null )
+      {
+        c.channels[ c.count ] = ch;
+        c.next    [ c.count ] = ch.count();
+        c.count++;
+      }
+    }
+    
+    channel( c, ch == null ? (attr == null ? Result.UNAVAILABLE : Result.RANGE) : Result.OK, ch == null ? 0 : ch.id, path );
+  }
+  
+  private void channel( Connection c, Result result, int id, String path )
+  {
+    int start = begin( c, Protocol.CHANNEL );
+
+    c.out.put( (byte) result.ordinal() );
+    Protocol.putVarint( c.out, id );
+    Protocol.putString( c.out, path );
+
+    end( c, start );
+  }
+  
+  private void unsubscribe( Connection c, int id )
+  {
+    int i = indexOf( c, id );
+    
+    if ( i < 0 )
+      return;
+
+    sampler.release( c.channels[i] );
+    drop( c, i );
+  }
+  
+  /** Forget subscription i */
+  private void drop( Connection c, int i )
+  {
+    c.count--;
+    c.channels[i] = c.channels[ c.count ];
+    c.next    [i] = c.next    [ c.count ];
+    c.channels[ c.count ] = null;
+  }
+  
+  private int indexOf( Connection c, int id )
+  {
+    for ( int i=0 ; i < c.count ; i++ )
+      if ( c.channels[i].id == id )
+        return i;
+
+    return -1;
+  }
+
+  
+  private void motor( Connection c, String name )
+  {
+    DeviceNodeInstance motor  = Tacho.motor( name );
+    int                handle = -1;
+    int                free   = -1;
+    
+    for ( int i=0 ; motor != null && i < MAX_MOTORS && handle < 0 ; i++ )
+      if ( motor.equals( c.motors[i] ) )
+        handle = i;
+      else
+      if ( c.motors[i] == null && free < 0 )
+        free = i;
+    
+    if ( handle < 0 && free >= 0 && repo.sysfs.attributes( motor ).length > 0 )
+    {
+      c.motors[ free ] = motor;
+      handle = free;
+    }
+    
+    int start = begin( c, Protocol.HANDLE );
+
+    c.out.put( (byte) (handle < 0 ? Result.UNAVAILABLE : Result.OK).ordinal() );
+    Protocol.putVarint( c.out, Math.max( handle, 0 ) );
+    Protocol.putString( c.out, name );
+
+    end( c, start );
+  }
+  
+  
+  private void command( Connection c, ByteBuffer in )
+  {
+    commands.decode( in, (int) Protocol.getVarint( in ), c.handles );
+    commands.run( repo.sysfs, repo.values );
+    
+    int start = begin( c, Protocol.COMMANDED );
+    
+    Protocol.putVarint( c.out, commands.count );
+    
+    for ( int i=0 ; i < commands.count ; i++ )
+      c.out.put( (byte) commands.result[i].ordinal() );
+    
+    Protocol.putVarint( c.out, commands.skew );
+    
+    end( c, start );
+  }
+  
+  
+  //===========================================================================
+  // Writing frames
+
+  /** Start frame in connection's output, returning where it starts */
+  private int begin( Connection c, byte type )
+  {
+    int start = c.out.position();
+
+    c.out.putShort( (short) 0 ).put( type );
+    
+    return start;
+  }
+
+  /** Fill in frame's length */
+  private void end( Connection c, int start )
+  {
+    c.out.putShort( start, (short) (c.out.position() - start - 2) );
+    framesOut = framesOut + 1;
+  }
+  
+  
+  /** Append frame of new samples of connection's channels, and send */
+  private void push( Connection c )
+  {
+    ByteBuffer out = c.out;
+
+    // backlog: wait for the client to catch up
+    if ( c.count == 0 || out.position() > OUT / 2 )
+      return;
+    
+    // channels dropped by the sampler - device unplugged
+    for ( int i=c.count-1 ; i >= 0 ; i-- )
+      if ( c.channels[i].closed() )
+      {
+        Sampler.Channel ch = c.channels[i];
+
+        drop( c, i );
+        channel( c, Result.UNAVAILABLE, ch.id, ch.node.subpath() + "/" + ch.attr.name() );
+      }
+
+    int start = begin( c, Protocol.SAMPLES );
+    int count = out.position();
+    int sent  = 0;
+    
+    out.put( (byte) 0 );
+    
+    for ( int i=0 ; i < c.count ; i++ )
+    {
+      Sampler.Channel ch    = c.channels[i];
+      int             block = out.position();
+      long            seq   = Math.max( c.next[i], ch.safe() );
+      
+      // each sample takes at most 10 + 5 bytes, and a frame at most 64K
+      long n = Math.min( ch.count() - seq, Math.min( out.remaining() - 32, 0xFFFF - (block - start) - 32 ) / 15 );
+      
+      if ( n <= 0 )
+        continue;
+      
+      Protocol.putVarint( out, ch.id );
+      Protocol.putVarint( out, n );
+      
+      long time = 0, value = 0;
+      
+      for ( long s = seq ; s < seq + n ; s++ )
+      {
+        long t = TimeUnit.NANOSECONDS.toMicros( ch.timeAt( s ) - c.epoch );
+        long v = ch.valueAt( s );
+        
+        Protocol.putZigzag( out, t - time );
+        Protocol.putZigzag( out, v - value );
+        
+        time  = t;
+        value = v;
+      }
+      
+      // overwritten while copying, even from a safe start - try again next push rather than here
+      if ( seq < ch.oldest() )
+      {
+        out.position( block );
+        continue;
+      }
+      
+      dropped   = dropped + (seq - c.next[i]);
+      c.next[i] = seq + n;
+      sent++;
+    }
+    
+    if ( sent == 0 )
+      out.position( start );
+    else
+    {
+      out.put( count, (byte) sent );
+      end( c, start );
+    }
+    
+    if ( out.position() == 0 )
+      return;
+    
+    try
+    {
+      flush( c );
+    }
+    catch ( IOException e )
+    {
+      close( c.key );
+    }
+  }
+  
+  /** Send as much output as the socket takes, asking to be told when it takes more */
+  private void flush( Connection c ) throws IOException
+  {
+    ByteBuffer out = c.out;
+    
+    out.flip();
+    bytesOut = bytesOut + c.channel.write( out );
+    out.compact();
+    
+    c.key.interestOps( out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ );
+  }
+
+}
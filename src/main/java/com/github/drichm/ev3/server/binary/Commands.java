@@ -0,0 +1,117 @@
+package com.github.drichm.ev3.server.binary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Result;
+import com.github.drichm.ev3.lib.hardware.SysFS;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.lib.hardware.ValueCache;
+
+/**
+ * Setpoint and command writes decoded from a frame, reused frame after frame so running them allocates nothing
+ * <p>
+ * Each write is a motor, a u8 code and a value - see {@link Protocol}. Not thread-safe - one per thread.
+ */
+class Commands
+{
+  //===========================================================================
+
+  /** Reads a motor reference from a frame, null if it names no motor */
+  static interface Motors
+  {
+    DeviceNodeInstance motor( ByteBuffer in );
+  }
+  
+  
+  //===========================================================================
+
+  final DeviceNodeInstance[] motor;
+  final int[]                code;
+  final long[]               value;
+  final Result[]             result;
+  
+  /** Writes decoded, and nanoseconds between the start of the first and last command write */
+  int                        count;
+  long                       skew;
+  
+  /** Command strings, encoded once */
+  private final ByteBuffer[] command = new ByteBuffer[ Protocol.COMMANDS.length ];
+
+  
+  Commands( int capacity )
+  {
+    this.motor  = new DeviceNodeInstance[ capacity ];
+    this.code   = new int   [ capacity ];
+    this.value  = new long  [ capacity ];
+    this.result = new Result[ capacity ];
+    
+    for ( int i=0 ; i < command.length ; i++ )
+    {
+      byte[] bytes = Protocol.COMMANDS[i].getBytes( StandardCharsets.US_ASCII );
+      
+      command[i] = ByteBuffer.allocateDirect( bytes.length ).put( bytes );
+    }
+  }
+  
+  
+  //===========================================================================
+
+  /**
+   * Decode n writes
+   * 
+   * @throws IllegalArgumentException if there are too many, or any is malformed
+   */
+  void decode( ByteBuffer in, int n, Motors motors )
+  {
+    if ( n < 0 || n > code.length )
+      throw new IllegalArgumentException( "Too many writes " + n );
+
+    for ( int i=0 ; i < n ; i++ )
+    {
+      motor[i] = motors.motor( in );
+      code [i] = in.get() & 0xFF;
+      value[i] = code[i] == 0 ? in.get() & 0xFF : Protocol.getZigzag( in );
+      
+      if ( motor[i] == null || code[i] > Protocol.SETPOINTS.length || (code[i] == 0 && value[i] >= command.length) )
+        throw new IllegalArgumentException( "Bad write " + i );
+    }
+    
+    count = n;
+  }
+  
+  /** Write all setpoints, then all commands back-to-back - a motor whose setpoint failed is not sent its command */
+  void run( SysFS sysfs, ValueCache values )
+  {
+    for ( int i=0 ; i < count ; i++ )
+      result[i] = code[i] == 0 ? Result.OK : sysfs.write( motor[i], Protocol.SETPOINTS[ code[i] - 1 ], value[i] );
+    
+    for ( int i=0 ; i < count ; i++ )
+      if ( code[i] != 0 && !result[i].ok() )
+        for ( int j=0 ; j < count ; j++ )
+          if ( code[j] == 0 && motor[j].equals( motor[i] ) )
+            result[j] = result[i];
+    
+    long    first = 0, last = 0;
+    boolean any   = false;
+    
+    for ( int i=0 ; i < count ; i++ )
+      if ( code[i] == 0 && result[i].ok() )
+      {
+        last = System.nanoTime();
+        
+        if ( !any )
+          first = last;
+
+        any       = true;
+        result[i] = sysfs.write( motor[i], Tacho.COMMAND, command[ (int) value[i] ].rewind() );
+      }
+    
+    skew = last - first;
+    
+    for ( int i=0 ; i < count ; i++ )
+      values.invalidate( motor[i] );
+  }
+
+}
@@ -0,0 +1,120 @@
+package com.github.drichm.ev3.server.binary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+
+/**
+ * Wire format of the binary protocol, and its primitive encodings
+ * <p>
+ * Every frame is a big-endian u16 length, counting the bytes after it, then a u8 frame type and its payload.
+ * Integers are unsigned LEB128 varints, signed ones zigzag-encoded first. Strings are a varint byte count then UTF-8.
+ * <p>
+ * Client to server:
+ * <ul>
+ * <li>SUBSCRIBE {@code string "type/node/attribute"} - sample attribute, and stream its samples</li>
+ * <li>UNSUBSCRIBE {@code varint channel}</li>
+ * <li>MOTOR {@code string "motorN"} - look up handle for motor</li>
+ * <li>COMMAND {@code varint n, n * (varint handle, u8 code, code 0 ? u8 command : zigzag value)} - code 0 is the
+ * motor's command (index into {@link #COMMANDS}), code i &gt; 0 sets {@link #SETPOINTS}[i-1]</li>
+ * </ul>
+ * Server to client:
+ * <ul>
+ * <li>CHANNEL {@code u8 result, varint channel, string path} - reply to SUBSCRIBE, or with a failed result when a
+ * subscribed channel stops (its device unplugged)</li>
+ * <li>HANDLE {@code u8 result, varint handle, string motor} - reply to MOTOR</li>
+ * <li>COMMANDED {@code varint n, n * u8 result, varint skew nanoseconds} - reply to COMMAND</li>
+ * <li>SAMPLES {@code u8 n, n * (varint channel, varint count, count * (zigzag time delta, zigzag value delta))} - the
+ * first sample's deltas are from 0, times in microseconds since the connection was accepted</li>
+ * </ul>
+ * Results are {@link com.github.drichm.ev3.lib.hardware.Result} ordinals, 0 being OK.
+ */
+public class Protocol
+{
+  //===========================================================================
+
+  static public final byte SUBSCRIBE   = 0x01;
+  static public final byte UNSUBSCRIBE = 0x02;
+  static public final byte MOTOR       = 0x03;
+  static public final byte COMMAND     = 0x04;
+  
+  static public final byte CHANNEL     = (byte) 0x81;
+  static public final byte HANDLE      = (byte) 0x82;
+  static public final byte COMMANDED   = (byte) 0x83;
+  static public final byte SAMPLES     = (byte) 0x84;
+
+  /** Attributes a COMMAND can set, by code - 1 */
+  static public final AttributeInstance[] SETPOINTS = { Tacho.DUTY_CYCLE_SP, Tacho.SPEED_SP, Tacho.POSITION_SP, Tacho.TIME_SP };
+  
+  /** Motor commands, by code */
+  static public final String[]            COMMANDS  = { Tacho.RUN_FOREVER, Tacho.RUN_TO_ABS_POS, Tacho.RUN_TO_REL_POS, Tacho.RUN_TIMED,
+                                                        Tacho.RUN_DIRECT, Tacho.STOP, Tacho.RESET };
+
+  
+  //===========================================================================
+
+  static public void putVarint( ByteBuffer b, long value )
+  {
+    while ( (value & ~0x7FL) != 0 )
+    {
+      b.put( (byte) ((value & 0x7F) | 0x80) );
+      value >>>= 7;
+    }
+    
+    b.put( (byte) value );
+  }
+
+  static public long getVarint( ByteBuffer b )
+  {
+    long value = 0;
+    
+    for ( int shift = 0 ; shift < 64 ; shift += 7 )
+    {
+      byte next = b.get();
+      
+      value |= (long) (next & 0x7F) << shift;
+      
+      if ( next >= 0 )
+        return value;
+    }
+    
+    throw new IllegalArgumentException( "Varint too long" );
+  }
+  
+  static public void putZigzag( ByteBuffer b, long value )
+  {
+    putVarint( b, (value << 1) ^ (value >> 63) );
+  }
+
+  static public long getZigzag( ByteBuffer b )
+  {
+    long v = getVarint( b );
+    
+    return (v >>> 1) ^ -(v & 1);
+  }
+  
+  static public void putString( ByteBuffer b, String s )
+  {
+    byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+    
+    putVarint( b, bytes.length );
+    b.put( bytes );
+  }
+  
+  static public String getString( ByteBuffer b )
+  {
+    long length = getVarint( b );
+    
+    if ( length > b.remaining() )
+      throw new IllegalArgumentException( "String overruns frame" );
+    
+    byte[] bytes = new byte[ (int) length ];
+    
+    b.get( bytes );
+    
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+
+}
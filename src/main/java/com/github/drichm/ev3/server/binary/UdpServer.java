@@ -0,0 +1,259 @@
+package com.github.drichm.ev3.server.binary;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+
+/**
+ * UDP motor setpoints for teleoperation, where a late command is worse than a lost one
+ * <p>
+ * A datagram is a big-endian u32 sequence number, then u8 n and n writes of {@code (u8 motor number, u8 code,
+ * code 0 ? u8 command : zigzag value)} - codes as {@link Protocol}'s COMMAND, motor number N meaning motorN.
+ * Datagrams not newer than the last one applied are dropped, even after the watchdog fired, so one delayed past a
+ * stall is not applied. A datagram from a new sender, or more than {@link #RESTART_GAP} behind the last (the sender
+ * restarted), starts a new sequence.
+ * <p>
+ * If the watchdog is set and no datagram arrives within it, every motor commanded since the last datagram is
+ * stopped. Nothing is replied.
+ */
+public class UdpServer
+{
+  //===========================================================================
+
+  /** Largest datagram accepted */
+  static public final int MAX_DATAGRAM = 512;
+  
+  /** Highest motor number */
+  static public final int MAX_MOTOR    = 31;
+  
+  /** A datagram this far behind the last from its sender starts a new sequence */
+  static public final int RESTART_GAP  = 1 << 16;
+  
+  
+  static public class Report
+  {
+    public final int  port;
+    public final long received;
+    public final long applied;
+    public final long dropped;
+    public final long late;
+    public final long malformed;
+    public final long stops;
+    
+    Report( UdpServer s )
+    {
+      this.port      = s.port;
+      this.received  = s.received;
+      this.applied   = s.applied;
+      this.dropped   = s.dropped;
+      this.late      = s.late;
+      this.malformed = s.malformed;
+      this.stops     = s.stops;
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final int           port;
+  public final EV3Repository repo;
+  public final long          watchdogMillis;
+  
+  private volatile Thread    thread;
+  private DatagramSocket     socket;
+
+  /** Datagrams received, applied, dropped as stale, from a sender after the watchdog stopped it, malformed - and watchdog stops */
+  private volatile long      received;
+  private volatile long      applied;
+  private volatile long      dropped;
+  private volatile long      late;
+  private volatile long      malformed;
+  private volatile long      stops;
+  
+  /** Receive state - receive thread only */
+  private final byte[]               bytes    = new byte[ MAX_DATAGRAM ];
+  private final DatagramPacket       packet   = new DatagramPacket( bytes, bytes.length );
+  private final ByteBuffer           buffer   = ByteBuffer.wrap( bytes );
+  private final Commands             commands = new Commands( MAX_DATAGRAM / 3 );
+  private final Commands.Motors      numbers  = this::motor;
+  private final DeviceNodeInstance[] motors   = new DeviceNodeInstance[ MAX_MOTOR + 1 ];
+  private final boolean[]            running  = new boolean[ MAX_MOTOR + 1 ];
+  private InetAddress                sender;
+  private int                        senderPort;
+  private int                        sequence;
+  private long                       lastNanos;
+  private boolean                    fired    = true;
+
+  
+  /**
+   * @param watchdogMillis stop motors when no datagram arrives for this long, 0 never to
+   */
+  public UdpServer( int port, EV3Repository repo, long watchdogMillis )
+  {
+    this.port           = port;
+    this.repo           = repo;
+    this.watchdogMillis = watchdogMillis;
+  }
+
+  
+  //===========================================================================
+
+  public Report report()  { return new Report( this ); }
+
+  /** Listen on port, on a daemon thread */
+  public synchronized void start() throws SocketException
+  {
+    if ( thread != null )
+      return;
+    
+    socket = new DatagramSocket( new InetSocketAddress( port ) );
+    
+    // wake often enough to fire the watchdog on time
+    socket.setSoTimeout( watchdogMillis > 0 ? (int) Math.max( 1, watchdogMillis / 4 ) : 0 );
+    
+    thread = new Thread( this::loop, "ev3-udp" );
+    thread.setDaemon  ( true );
+    thread.setPriority( Thread.MAX_PRIORITY - 1 );
+    thread.start();
+    
+    System.out.println( "UDP commands @ port " + port );
+  }
+  
+  public synchronized void stop()
+  {
+    thread = null;
+    
+    if ( socket != null )
+      socket.close();
+  }
+  
+  
+  //===========================================================================
+
+  private void loop()
+  {
+    Thread me = Thread.currentThread();
+    
+    while ( thread == me )
+    {
+      try
+      {
+        packet.setLength( bytes.length );
+        socket.receive( packet );
+        
+        received = received + 1;
+
+        receive();
+      }
+      catch ( SocketTimeoutException e )
+      { // quiet - check the watchdog
+      }
+      catch ( IOException e )
+      {
+        if ( thread == me )
+          e.printStackTrace();
+      }
+      
+      if ( watchdogMillis > 0 && !fired && System.nanoTime() - lastNanos > watchdogMillis * 1_000_000 )
+        watchdog();
+    }
+    
+    // leave nothing running
+    if ( !fired )
+      watchdog();
+  }
+  
+  /** Apply datagram in packet, if newer than the last */
+  private void receive()
+  {
+    buffer.limit( packet.getLength() ).position( 0 );
+
+    try
+    {
+      int seq = buffer.getInt();
+
+      commands.decode( buffer, buffer.get() & 0xFF, numbers );
+      
+      // sequence numbers wrap, so compare by difference
+      boolean same   = packet.getPort() == senderPort && packet.getAddress().equals( sender );
+      int     behind = sequence - seq;
+      
+      if ( same && behind >= 0 && behind < RESTART_GAP )
+      {
+        dropped = dropped + 1;
+        return;
+      }
+
+      // sender was still going when the watchdog stopped its motors
+      if ( same && fired )
+        late = late + 1;
+
+      sender     = packet.getAddress();
+      senderPort = packet.getPort();
+      sequence   = seq;
+      lastNanos  = System.nanoTime();
+      fired      = false;
+      
+      commands.run( repo.sysfs, repo.values );
+      
+      for ( int i=0 ; i < commands.count ; i++ )
+        running[ number( commands.motor[i] ) ] = true;
+      
+      applied = applied + 1;
+    }
+    catch ( BufferUnderflowException | IllegalArgumentException e )
+    {
+      malformed = malformed + 1;
+    }
+  }
+  
+  /** Stop every motor commanded since the watchdog last fired */
+  private void watchdog()
+  {
+    for ( int i=0 ; i < running.length ; i++ )
+      if ( running[i] )
+      {
+        repo.sysfs.write( motors[i], Tacho.COMMAND, Tacho.STOP );
+        repo.values.invalidate( motors[i] );
+        running[i] = false;
+      }
+    
+    fired = true;
+    stops = stops + 1;
+  }
+  
+  
+  /** Motor for number read from datagram, null if out of range */
+  private DeviceNodeInstance motor( ByteBuffer in )
+  {
+    int n = in.get() & 0xFF;
+    
+    if ( n > MAX_MOTOR )
+      return null;
+    
+    if ( motors[n] == null )
+      motors[n] = Tacho.motor( "motor" + n );
+    
+    return motors[n];
+  }
+  
+  private int number( DeviceNodeInstance motor )
+  {
+    for ( int i=0 ; i < motors.length ; i++ )
+      if ( motors[i] == motor )
+        return i;
+
+    return 0;
+  }
+
+}
@@ -0,0 +1,155 @@
+package com.github.drichm.ev3.server.servlet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.CommandBatch;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Result;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.server.api.IHttp;
+
+/**
+ * Command several motors at once
+ * <p>
+ * {@code /command?motor0.speed_sp=500&motor0.command=run-forever&motor1.speed_sp=500&motor1.command=run-forever}
+ * writes every setpoint, then every command back-to-back, and reports the skew between the first and last command.
+ */
+public class Command extends UrlContextServer
+{
+  //===========================================================================
+
+  static public class JsonReply
+  {
+    public final long        millis;
+    
+    /** Nanoseconds between start of first and last command write */
+    public final long        skew;
+    
+    public final JsonWrite[] writes;
+    
+    public JsonReply( CommandBatch batch )
+    {
+      this.millis = batch.millis;
+      this.skew   = batch.skew;
+      this.writes = batch.writes.stream().map( JsonWrite::new ).toArray( JsonWrite[]::new );
+    }
+  }
+
+  static public class JsonWrite
+  {
+    public final String motor;
+    public final String attr;
+    public final String s;
+    public final Result error;
+    
+    /** Nanoseconds after first command write, for commands */
+    public final Long   offset;
+
+    public JsonWrite( CommandBatch.Write w )
+    {
+      this.motor  = w.node.name();
+      this.attr   = w.attr.name();
+      this.s      = w.value;
+      this.error  = w.result.ok() ? null : w.result;
+      this.offset = w.command ? w.offset : null;
+    }
+  }
+
+  
+  //===========================================================================
+
+  public final EV3Repository repo;
+  
+  public Command( String urlContext, EV3Repository repo )
+  {
+    super( urlContext );
+    
+    this.repo = repo;
+  }
+
+  
+  //===========================================================================
+
+  @Override public void serve( IHttp http, String path )
+  {
+    if ( !path.isEmpty() )
+    {
+      http.status( 404, path );
+      return;
+    }
+
+    // motor:(attribute:value), motors and attributes in name order
+    Map<String,Map<String,String>> motors = new TreeMap<>();
+    
+    for ( Map.Entry<String,List<String>> p: http.parameters().entrySet() )
+    {
+      int dot = p.getKey().indexOf( '.' );
+      
+      if ( dot <= 0 || dot == p.getKey().length() - 1 || p.getValue().isEmpty() )
+      {
+        http.status( 400, "Expected <motor>.<attribute>=<value>: " + p.getKey() );
+        return;
+      }
+      
+      motors.computeIfAbsent( p.getKey().substring( 0, dot ), k -> new TreeMap<>() )
+            .put( p.getKey().substring( dot + 1 ), p.getValue().get( 0 ) );
+    }
+
+    CommandBatch batch;
+    
+    try
+    {
+      batch = batch( repo, motors );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      http.status( 404, e.getMessage() );
+      return;
+    }
+    
+    repo.sysfs.writeAll( batch );
+    
+    motors.keySet().forEach( m -> repo.values.invalidate( Tacho.motor( m ) ) );
+    
+    http.json( new JsonReply( batch ) );
+  }
+
+  
+  /**
+   * Batch for motor:(attribute:value) map, value of "command" being the motor's command
+   * 
+   * @throws IllegalArgumentException naming any motor or attribute that does not exist
+   */
+  static public CommandBatch batch( EV3Repository repo, Map<String,Map<String,String>> motors )
+  {
+    CommandBatch batch = new CommandBatch();
+    
+    for ( Map.Entry<String,Map<String,String>> m: motors.entrySet() )
+    {
+      DeviceNodeInstance motor = Tacho.motor( m.getKey() );
+      
+      if ( motor == null || repo.sysfs.attributes( motor ).length == 0 )
+        throw new IllegalArgumentException( m.getKey() );
+      
+      for ( Map.Entry<String,String> a: m.getValue().entrySet() )
+      {
+        AttributeInstance attr = repo.sysfs.attribute( motor, a.getKey() );
+
+        if ( attr == null )
+          throw new IllegalArgumentException( m.getKey() + "/" + a.getKey() );
+        else
+        if ( attr.equals( Tacho.COMMAND ) )
+          batch.command( motor, a.getValue() );
+        else
+          batch.set( motor, attr, a.getValue() );
+      }
+    }
+    
+    return batch;
+  }
+
+}
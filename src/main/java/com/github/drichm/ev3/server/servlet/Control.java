@@ -0,0 +1,203 @@
+package com.github.drichm.ev3.server.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.github.drichm.ev3.lib.Controller;
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.server.api.IHttp;
+
+/**
+ * Run closed-loop motor controllers on the brick
+ * <p>
+ * <ul>
+ * <li>{@code /control} - report of all controllers</li>
+ * <li>{@code /control/<name>/start?sensor=lego-sensor/sensor0/value0&motor=motor0&setpoint=50&kp=1&ki=0&kd=0&period=10}
+ * - create (or replace) and start controller; optional {@code min}/{@code max} output limits, default -100/100.
+ * 409 if another controller drives the motor, 503 if {@link #MAX_CONTROLLERS} already run</li>
+ * <li>{@code /control/<name>/tune?setpoint=&kp=&ki=&kd=&min=&max=} - retune live, missing values unchanged</li>
+ * <li>{@code /control/<name>/stop} - stop controller and motor, and forget it</li>
+ * </ul>
+ */
+public class Control extends UrlContextServer
+{
+  //===========================================================================
+
+  /** Shortest loop period, milliseconds */
+  static public final long MIN_PERIOD = 2;
+  
+  /** Most controllers at once - each is a thread at high priority */
+  static public final int  MAX_CONTROLLERS = 8;
+  
+  
+  //===========================================================================
+
+  public final EV3Repository           repo;
+  
+  private final Map<String,Controller> controllers = new ConcurrentHashMap<>();
+
+  public Control( String urlContext, EV3Repository repo )
+  {
+    super( urlContext );
+    
+    this.repo = repo;
+  }
+
+  
+  //===========================================================================
+
+  /** Reports of all controllers, by name */
+  public Map<String,Controller.Report> report()
+  {
+    Map<String,Controller.Report> reports = new TreeMap<>();
+    
+    controllers.forEach( (name,c) -> reports.put( name, c.report() ) );
+    
+    return reports;
+  }
+
+  
+  //===========================================================================
+
+  @Override public void serve( IHttp http, String path )
+  {
+    if ( path.isEmpty() )
+    {
+      http.json( report() );
+      return;
+    }
+    
+    int slash = path.indexOf( '/' );
+    
+    if ( slash <= 0 )
+    {
+      http.status( 404, path );
+      return;
+    }
+    
+    String     name    = path.substring( 0, slash );
+    String     command = path.substring( slash + 1 );
+    Controller c;
+    
+    try
+    {
+      switch ( command )
+      {
+        case "start":
+          c = start( http, name );
+
+          if ( c == null )
+            return;
+          break;
+  
+        case "tune":
+          c = controllers.get( name );
+
+          if ( c != null )
+            c.tune( gains( http, c.gains() ) );
+          break;
+  
+        case "stop":
+          c = stop( name );
+          break;
+  
+        default:
+          http.status( 404, path );
+          return;
+      }
+    }
+    catch ( IllegalArgumentException e )
+    {
+      http.status( 400, e.getMessage() );
+      return;
+    }
+    
+    if ( c == null )
+      http.status( 404, name );
+    else
+      http.json( c.report() );
+  }
+
+  
+  /**
+   * Stop any controller of that name, then create and start a new one - null if another controller drives the
+   * motor, or too many run, with the reply sent
+   */
+  private synchronized Controller start( IHttp http, String name )
+  {
+    String             sensor = param( http, "sensor" );
+    int                last   = sensor == null ? -1 : sensor.lastIndexOf( '/' );
+    DeviceNodeInstance node   = last <= 0 ? null : DeviceNodeInstance.parse( sensor.substring( 0, last ) );
+    AttributeInstance  attr   = node == null ? null : repo.sysfs.attribute( node, sensor.substring( last + 1 ) );
+    DeviceNodeInstance motor  = Tacho.motor( param( http, "motor" ) );
+    long               period = param( http, "period", 10L );
+    
+    if ( attr == null )
+      throw new IllegalArgumentException( "No such sensor attribute: " + sensor );
+    
+    if ( motor == null || repo.sysfs.attributes( motor ).length == 0 )
+      throw new IllegalArgumentException( "No such motor: " + param( http, "motor" ) );
+    
+    if ( period < MIN_PERIOD )
+      throw new IllegalArgumentException( "Period must be at least " + MIN_PERIOD + "ms" );
+    
+    Controller.Gains gains = gains( http, new Controller.Gains( 0, 0, 0, 0, -100, 100 ) );
+    Controller       old   = controllers.get( name );
+    
+    for ( Map.Entry<String,Controller> e: controllers.entrySet() )
+      if ( !e.getKey().equals( name ) && e.getValue().motor.equals( motor ) )
+      {
+        http.status( 409, "Motor " + motor.subpath() + " is driven by controller " + e.getKey() );
+        return null;
+      }
+    
+    if ( old == null && controllers.size() >= MAX_CONTROLLERS )
+    {
+      http.status( 503, "Already running " + MAX_CONTROLLERS + " controllers" );
+      return null;
+    }
+
+    if ( old != null )
+      old.stop();
+
+    Controller c = new Controller( "ev3-control-" + name, repo.sysfs, node, attr, motor, gains, TimeUnit.MILLISECONDS.toNanos( period ) );
+
+    controllers.put( name, c );
+    
+    repo.values.invalidate( motor );
+    c.start();
+    
+    return c;
+  }
+  
+  /** Stop and forget controller of that name, returning it - null if none */
+  private synchronized Controller stop( String name )
+  {
+    Controller c = controllers.remove( name );
+    
+    if ( c != null )
+    {
+      c.stop();
+      repo.values.invalidate( c.motor );
+    }
+    
+    return c;
+  }
+  
+  /** Gains from query, defaulting to current */
+  static private Controller.Gains gains( IHttp http, Controller.Gains g )
+  {
+    return new Controller.Gains( param( http, "setpoint", g.setpoint ),
+                                 param( http, "kp"      , g.kp       ),
+                                 param( http, "ki"      , g.ki       ),
+                                 param( http, "kd"      , g.kd       ),
+                                 param( http, "min"     , g.min      ),
+                                 param( http, "max"     , g.max      ) );
+  }
+
+}
@@ -0,0 +1,129 @@
+package com.github.drichm.ev3.server.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.Trajectory;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.server.api.IHttp;
+
+/**
+ * Run motion profiles on the brick
+ * <p>
+ * <ul>
+ * <li>{@code GET /move} - report of moves in progress</li>
+ * <li>{@code POST /move?motor0=720&motor1=-720&speed=500&accel=1000&profile=scurve} - move motors together to target
+ * positions (tacho counts), {@code relative=true} for targets relative to current positions. Speed is capped at
+ * each motor's max_speed.</li>
+ * <li>{@code POST /move/stop} - stop all moves and their motors</li>
+ * </ul>
+ * Moving or stopping on any other method is refused 405, so a prefetched or repeated GET cannot move motors.
+ */
+public class Motion extends UrlContextServer
+{
+  //===========================================================================
+
+  public final EV3Repository repo;
+  public final Trajectory    trajectory;
+  
+  public Motion( String urlContext, EV3Repository repo, Trajectory trajectory )
+  {
+    super( urlContext );
+    
+    this.repo       = repo;
+    this.trajectory = trajectory;
+  }
+
+  
+  //===========================================================================
+
+  @Override public void serve( IHttp http, String path )
+  {
+    boolean post = http.method().equals( "POST" );
+    
+    if ( !post && (path.equals( "stop" ) || http.parameters().keySet().stream().anyMatch( p -> p.startsWith( "motor" ) )) )
+    {
+      http.status( 405, "POST to move or stop motors" );
+      return;
+    }
+    
+    if ( path.equals( "stop" ) )
+      trajectory.cancel();
+    else
+    if ( !path.isEmpty() )
+    {
+      http.status( 404, path );
+      return;
+    }
+    else
+    try
+    {
+      Trajectory.Move[] moves = moves( http );
+
+      if ( moves.length > 0 )
+        trajectory.start( moves );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      http.status( 400, e.getMessage() );
+      return;
+    }
+
+    http.json( trajectory.report() );
+  }
+
+  
+  /** Moves asked for, none if no motors given */
+  private Trajectory.Move[] moves( IHttp http )
+  {
+    double             speed    = param( http, "speed", 0.0 );
+    double             accel    = param( http, "accel", 0.0 );
+    boolean            relative = Boolean.parseBoolean( param( http, "relative" ) );
+    String             profile  = param( http, "profile" );
+    Reading            reading  = new Reading();
+    
+    List<Trajectory.Move> moves = new ArrayList<>();
+
+    for ( Map.Entry<String,List<String>> p: http.parameters().entrySet() )
+    {
+      if ( !p.getKey().startsWith( "motor" ) )
+        continue;
+      
+      DeviceNodeInstance motor = Tacho.motor( p.getKey() );
+      
+      if ( motor == null || repo.sysfs.attributes( motor ).length == 0 )
+        throw new IllegalArgumentException( "No such motor: " + p.getKey() );
+      
+      long target;
+      
+      try
+      {
+        target = Long.parseLong( p.getValue().get( 0 ).trim() );
+      }
+      catch ( NumberFormatException e )
+      {
+        throw new IllegalArgumentException( "Target of " + p.getKey() + " is not a number" );
+      }
+
+      if ( relative )
+      {
+        if ( !repo.sysfs.readInt( motor, Tacho.POSITION, reading ).ok() )
+          throw new IllegalArgumentException( "Cannot read position of " + p.getKey() + ": " + reading.result );
+
+        target += reading.value;
+      }
+      
+      double max = repo.values.readLong( motor, Tacho.MAX_SPEED, reading ).ok() ? reading.value : speed;
+      
+      moves.add( new Trajectory.Move( motor, target, Math.min( speed, max ), accel,
+                                      profile == null ? Trajectory.Profile.trapezoid : Trajectory.Profile.valueOf( profile ) ) );
+    }
+    
+    return moves.toArray( new Trajectory.Move[ moves.size() ] );
+  }
+
+}
@@ -0,0 +1,177 @@
+package com.github.drichm.ev3.server.servlet;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.Odometry;
+import com.github.drichm.ev3.lib.Sampler;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Result;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.server.api.IHttp;
+
+/**
+ * Differential-drive odometry, integrated on the sampler thread
+ * <p>
+ * <ul>
+ * <li>{@code GET /odometry?n=100} - current pose, and up to n most recent poses (times in milliseconds relative to now)</li>
+ * <li>{@code POST /odometry/start?left=motor1&right=motor2&wheel=56&track=120} - start (or restart) from pose 0,0,0</li>
+ * <li>{@code POST /odometry/reset?x=0&y=0&heading=0} - carry on from given pose</li>
+ * <li>{@code POST /odometry/stop}</li>
+ * </ul>
+ * start, reset and stop on any other method are refused 405.
+ */
+public class Odometer extends UrlContextServer
+{
+  //===========================================================================
+
+  static public class JsonReply
+  {
+    public String        left;
+    public String        right;
+    public double        wheel;
+    public double        track;
+    public Result        error;
+    public long          failures;
+    
+    public Odometry.Pose pose;
+    public JsonHistory   history;
+  }
+  
+  /** Recent poses, oldest first */
+  static public class JsonHistory
+  {
+    public final long[]   t;
+    public final double[] x;
+    public final double[] y;
+    public final double[] heading;
+    
+    JsonHistory( Odometry odometry, int n )
+    {
+      long[]   times    = new long  [ n ];
+      double[] xs       = new double[ n ];
+      double[] ys       = new double[ n ];
+      double[] headings = new double[ n ];
+      long     now      = System.nanoTime();
+      
+      n = odometry.recent( times, xs, ys, headings );
+      
+      this.t       = new long  [ n ];
+      this.x       = new double[ n ];
+      this.y       = new double[ n ];
+      this.heading = new double[ n ];
+
+      for ( int i=0 ; i < n ; i++ )
+      {
+        this.t      [i] = TimeUnit.NANOSECONDS.toMillis( times[i] - now );
+        this.x      [i] = xs      [i];
+        this.y      [i] = ys      [i];
+        this.heading[i] = headings[i];
+      }
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final EV3Repository repo;
+  public final Sampler       sampler;
+  
+  private volatile Odometry  odometry;
+  
+  public Odometer( String urlContext, EV3Repository repo, Sampler sampler )
+  {
+    super( urlContext );
+    
+    this.repo    = repo;
+    this.sampler = sampler;
+  }
+
+  
+  //===========================================================================
+
+  @Override public void serve( IHttp http, String path )
+  {
+    if ( !path.isEmpty() && !http.method().equals( "POST" ) )
+    {
+      http.status( path.equals( "start" ) || path.equals( "reset" ) || path.equals( "stop" ) ? 405 : 404, path );
+      return;
+    }
+    
+    try
+    {
+      switch ( path )
+      {
+        case "":
+          break;
+
+        case "start":
+          start( http );
+          break;
+          
+        case "reset":
+          if ( odometry != null )
+            odometry.reset( param( http, "x", 0.0 ), param( http, "y", 0.0 ), param( http, "heading", 0.0 ) );
+          break;
+          
+        case "stop":
+          stop();
+          break;
+          
+        default:
+          http.status( 404, path );
+          return;
+      }
+    }
+    catch ( IllegalArgumentException e )
+    {
+      http.status( 400, e.getMessage() );
+      return;
+    }
+    
+    Odometry  o     = odometry;
+    JsonReply reply = new JsonReply();
+    
+    if ( o != null )
+    {
+      int n = (int) Math.max( 0, Math.min( o.capacity, param( http, "n", 100L ) ) );
+      
+      reply.left     = o.left .name();
+      reply.right    = o.right.name();
+      reply.wheel    = o.wheel;
+      reply.track    = o.track;
+      reply.error    = o.result().ok() ? null : o.result();
+      reply.failures = o.failures();
+      reply.pose     = o.pose();
+      reply.history  = new JsonHistory( o, n );
+    }
+    
+    http.json( reply );
+  }
+  
+  
+  private synchronized void start( IHttp http )
+  {
+    DeviceNodeInstance left  = Tacho.motor( param( http, "left"  ) );
+    DeviceNodeInstance right = Tacho.motor( param( http, "right" ) );
+    
+    if ( left == null || right == null || left.equals( right ) )
+      throw new IllegalArgumentException( "Need two different motors, left and right" );
+    
+    Odometry o = new Odometry( repo.sysfs, repo.values, left, right, param( http, "wheel", 0.0 ), param( http, "track", 0.0 ) );
+    
+    stop();
+    
+    odometry = o;
+    sampler.add( o );
+  }
+  
+  private synchronized void stop()
+  {
+    if ( odometry != null )
+      sampler.remove( odometry );
+    
+    odometry = null;
+  }
+
+}
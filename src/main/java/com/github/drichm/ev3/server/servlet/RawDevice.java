@@ -1,9 +1,21 @@
 package com.github.drichm.ev3.server.servlet;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.Batch;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.lib.hardware.Result;
 import com.github.drichm.ev3.server.api.IHttp;
 
-/** Access device directly */
+/**
+ * Access device directly
+ * <p>
+ * {@code /device/<file>} reads one file, {@code /device/<node>?attr=a&attr=b...} reads a batch of a node's attributes
+ */
 public class RawDevice extends UrlContextServer
 {
   //===========================================================================
@@ -12,13 +24,48 @@ public class RawDevice extends UrlContextServer
   {
     public long millis;
     
-    public String error;
+    public Result error;
     
     public byte[] b;
     public String s;
 
-    public JsonReply( byte[] b, String s )  { this.b = b; this.s = s; }
-    public JsonReply( Throwable t  )            { this.error = t.toString(); }
+    public JsonReply( Reading r )
+    {
+      if ( r.ok() )
+      {
+        this.b = r.bytes;
+        this.s = r.text;
+      }
+      else
+        this.error = r.result;
+    }
+  }
+
+  static public class JsonBatch
+  {
+    public long millis;
+    
+    /** Nanoseconds between first and last read */
+    public final long     skew;
+
+    public final String[] attr;
+    public final String[] s;
+    public final Result[] error;
+
+    public JsonBatch( Batch b )
+    {
+      this.skew  = b.skew;
+      this.attr  = new String[ b.size() ];
+      this.s     = new String[ b.size() ];
+      this.error = new Result[ b.size() ];
+
+      for ( int i=0 ; i < b.size() ; i++ )
+      {
+        this.attr [i] = b.attributes[i].name();
+        this.s    [i] = b.text( i );
+        this.error[i] = b.result[i].ok() ? null : b.result[i];
+      }
+    }
   }
 
   
@@ -27,6 +74,9 @@ public class RawDevice extends UrlContextServer
   
   public final EV3Repository repo;
   
+  /** Per-thread buffer for batches - their values are copied out before the next */
+  static private final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<>();
+  
   public RawDevice( String urlContext, EV3Repository repo )
   {
     super( urlContext );
@@ -37,31 +87,51 @@ public class RawDevice extends UrlContextServer
   
   @Override public void serve( IHttp http, String path )
   {
-    long millis = System.currentTimeMillis();
-    
-    JsonReply json;
+    List<String> attrs = http.parameters().get( "attr" );
     
-    try
+    if ( attrs != null && !attrs.isEmpty() )
     {
-      byte[] b = repo.sysfs.readBytes( path );
-      String s;
-      
-      try
-      {
-        s = repo.sysfs.readString( path );
-      }
-      catch ( Throwable t )
-      {
-        s = null;
-      }
-      
-      json = new JsonReply( b, s );
+      serve( http, path, attrs );
+      return;
     }
-    catch ( Throwable t )
+    
+    long millis = System.currentTimeMillis();
+    
+    Reading reading = new Reading();
+    
+    repo.values.read( path, reading );
+
+    JsonReply json = new JsonReply( reading );
+
+    json.millis = System.currentTimeMillis() - millis;
+    
+    http.json( json );
+  }
+
+
+  /** Read named attributes of device node at path back-to-back */
+  protected void serve( IHttp http, String path, List<String> attrs )
+  {
+    int slash = path.indexOf( '/' );
+    
+    if ( slash <= 0 || slash == path.length() - 1 )
     {
-      json = new JsonReply( t );
+      http.status( 404, path );
+      return;
     }
 
+    long millis = System.currentTimeMillis();
+    
+    DeviceNodeInstance node   = new DeviceNodeInstance( path.substring( 0, slash ), path.substring( slash + 1 ) );
+    ByteBuffer         buffer = BUFFER.get();
+    
+    if ( buffer == null || buffer.capacity() < Batch.PER_ATTRIBUTE * attrs.size() )
+      BUFFER.set( buffer = ByteBuffer.allocateDirect( Math.max( 4096, Batch.PER_ATTRIBUTE * attrs.size() ) ) );
+    
+    Batch batch = repo.values.readAll( node, new Batch( buffer, attrs.stream().map( AttributeInstance::new ).toArray( AttributeInstance[]::new ) ) );
+
+    JsonBatch json = new JsonBatch( batch );
+
     json.millis = System.currentTimeMillis() - millis;
     
     http.json( json );
@@ -1,7 +1,7 @@
 package com.github.drichm.ev3.server.servlet;
 
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.List;
 
 import com.github.drichm.ev3.lib.EV3Repository;
 import com.github.drichm.ev3.lib.hardware.AttributeInstance;
@@ -22,27 +22,33 @@ public class Repository extends UrlContextServer
   
   //===========================================================================
 
-  public class JsonReply
+  static public class JsonReply
   {
     public final JsonEntry[] nodes;
     
+    /** Snapshot version and when it was scanned */
+    public final long version;
+    public final long scanned;
+    
     public long millis;
 
-    public JsonReply( DeviceNodeInstance[] nodes )
+    public JsonReply( EV3Repository.Snapshot snapshot )
     {
-      this.nodes  = Arrays.stream( nodes  ).map( JsonEntry::new ).toArray( JsonEntry[]::new );
+      this.nodes   = snapshot.nodes.stream().map( n -> new JsonEntry( n, snapshot.attributes( n ) ) ).toArray( JsonEntry[]::new );
+      this.version = snapshot.version;
+      this.scanned = snapshot.millis;
     }
   }
 
-  public class JsonEntry
+  static public class JsonEntry
   {
-    public final DeviceNodeInstance  node;
-    public final AttributeInstance[] attr;
+    public final DeviceNodeInstance      node;
+    public final List<AttributeInstance> attr;
     
-    public JsonEntry( DeviceNodeInstance node )
+    public JsonEntry( DeviceNodeInstance node, List<AttributeInstance> attr )
     {
       this.node = node;
-      this.attr = repo.sysfs.attributes( node ).toArray( AttributeInstance[]::new );
+      this.attr = attr;
     }
   }
   
@@ -57,6 +63,7 @@ public class Repository extends UrlContextServer
     super( urlContext );
 
     this.repo = REPOSITORY;
+    this.repo.start( Defaults.SCAN_MILLIS );
   }
 
   
@@ -66,9 +73,7 @@ public class Repository extends UrlContextServer
   {
     long millis = System.currentTimeMillis();
 
-    repo.scan();
-    
-    JsonReply json = new JsonReply( repo.active() );
+    JsonReply json = new JsonReply( repo.snapshot() );
 
     json.millis = System.currentTimeMillis() - millis;
     
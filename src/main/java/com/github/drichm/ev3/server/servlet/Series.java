@@ -0,0 +1,278 @@
+package com.github.drichm.ev3.server.servlet;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.Sampler;
+import com.github.drichm.ev3.lib.device.Volatility;
+import com.github.drichm.ev3.lib.filter.Filter;
+import com.github.drichm.ev3.lib.filter.Pipeline;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Reading;
+import com.github.drichm.ev3.server.api.IHttp;
+import com.github.drichm.ev3.server.utils.JSON;
+import com.github.drichm.ev3.server.utils.Mime;
+
+/**
+ * Serve sampled history of an attribute, downsampled on the brick
+ * <p>
+ * {@code GET /series/<type>/<device>/<attribute>?from=-10000&to=0&bucket=100} returns min/max/mean/last of the samples
+ * in each bucket, times in milliseconds relative to now - 404 if the attribute is not sampled.
+ * {@code POST} starts sampling a live, numeric attribute, at most {@link Sampler#MAX_CHANNELS} in all, then replies
+ * as GET. {@code DELETE} stops sampling it, unless another user of the channel (a binary protocol subscription)
+ * still wants it. Channels of an unplugged device are dropped by the sampler.
+ * <p>
+ * Reply is {@code {"from":..,"to":..,"bucket":..,"count":..,"buckets":[[index,min,max,mean,last,n],...]}}, empty
+ * buckets left out.
+ * <p>
+ * On a POST, {@code filter=median:5,ema:0.3} (see {@link Pipeline}) sets the channel's filter from now on.
+ * {@code filtered=true} summarises filtered rather than raw values.
+ */
+public class Series extends UrlContextServer
+{
+  //===========================================================================
+
+  /** Most buckets one request may ask for */
+  static public final long MAX_BUCKETS = 10000;
+
+  
+  //===========================================================================
+
+  public final EV3Repository repo;
+  public final Sampler       sampler;
+  
+  /** Channels this servlet uses - one use each, however many POSTs */
+  private final Set<Sampler.Channel> held = new HashSet<>();
+  
+  public Series( String urlContext, EV3Repository repo, Sampler sampler )
+  {
+    super( urlContext );
+    
+    this.repo    = repo;
+    this.sampler = sampler;
+  }
+
+  
+  //===========================================================================
+
+  @Override public void serve( IHttp http, String path )
+  {
+    int first = path.indexOf    ( '/' );
+    int last  = path.lastIndexOf( '/' );
+    
+    if ( first <= 0 || last <= first + 1 || last == path.length() - 1 )
+    {
+      http.status( 404, path );
+      return;
+    }
+
+    DeviceNodeInstance node = new DeviceNodeInstance( path.substring( 0, first ), path.substring( first + 1, last ) );
+    AttributeInstance  attr = repo.sysfs.attribute( node, path.substring( last + 1 ) );
+    
+    if ( attr == null )
+    {
+      http.status( 404, path );
+      return;
+    }
+
+    String          method  = http.method();
+    Sampler.Channel channel = sampler.channel( node, attr );
+    
+    if ( method.equals( "DELETE" ) )
+    {
+      boolean removed = channel != null && release( channel );
+      
+      http.write( "{\"removed\":" + removed + "}", Mime.JSON );
+      return;
+    }
+    
+    long from   = param( http, "from"  , -10000 );
+    long to     = param( http, "to"    , 0 );
+    long bucket = param( http, "bucket", 100 );
+    
+    if ( bucket <= 0 || to <= from || (to - from) / bucket > MAX_BUCKETS )
+    {
+      http.status( 400, "Need bucket > 0, from < to, and at most " + MAX_BUCKETS + " buckets" );
+      return;
+    }
+    
+    if ( method.equals( "POST" ) )
+    {
+      channel = add( http, node, attr );
+      
+      if ( channel == null )
+        return;
+    }
+    else
+    if ( channel == null )
+    {
+      http.status( 404, "Not sampled - POST to start sampling " + path );
+      return;
+    }
+    
+    boolean filtered = Boolean.parseBoolean( param( http, "filtered" ) );
+    
+    StringBuilder json = new StringBuilder( 256 );
+    
+    json.append( "{\"from\":"   ).append( from   )
+        .append( ",\"to\":"     ).append( to     )
+        .append( ",\"bucket\":" ).append( bucket )
+        .append( ",\"count\":"  ).append( channel.count() )
+        .append( ",\"filter\":" ).append( channel.filter() == null ? "null" : JSON.stringify( channel.filter().toString() ) )
+        .append( ",\"buckets\":[" );
+
+    buckets( channel, from, to, bucket, filtered, json );
+    
+    json.append( "]}" );
+    
+    http.write( json.toString(), Mime.JSON );
+  }
+
+  
+  /** Start sampling attribute, setting any filter asked for - null if refused, with the reply sent */
+  private Sampler.Channel add( IHttp http, DeviceNodeInstance node, AttributeInstance attr )
+  {
+    if ( Volatility.of( attr ) != Volatility.live || !repo.sysfs.readInt( node, attr, new Reading() ).ok() )
+    {
+      http.status( 400, "Only live, numeric attributes can be sampled" );
+      return null;
+    }
+    
+    Sampler.Channel channel = hold( node, attr );
+    
+    if ( channel == null )
+    {
+      http.status( 503, "Already sampling " + Sampler.MAX_CHANNELS + " attributes" );
+      return null;
+    }
+    
+    String spec = param( http, "filter" );
+    
+    if ( spec != null )
+      try
+      {
+        Filter current = channel.filter();
+
+        if ( current == null || !spec.trim().equals( current.toString() ) )
+          channel.filter( spec.isBlank() ? null : Pipeline.parse( spec ) );
+      }
+      catch ( IllegalArgumentException e )
+      {
+        http.status( 400, e.getMessage() );
+        return null;
+      }
+    
+    return channel;
+  }
+  
+  /** Channel sampling attribute, taking a use of it if not held already - null if none can be added */
+  private Sampler.Channel hold( DeviceNodeInstance node, AttributeInstance attr )
+  {
+    synchronized ( held )
+    {
+      held.removeIf( Sampler.Channel::closed );
+      
+      Sampler.Channel channel = sampler.channel( node, attr );
+      
+      if ( channel != null && held.contains( channel ) )
+        return channel;
+      
+      channel = sampler.add( node, attr );
+      
+      if ( channel != null )
+        held.add( channel );
+      
+      return channel;
+    }
+  }
+  
+  /** Release this servlet's use of channel - false if it had none */
+  private boolean release( Sampler.Channel channel )
+  {
+    synchronized ( held )
+    {
+      if ( !held.remove( channel ) )
+        return false;
+      
+      sampler.release( channel );
+      return true;
+    }
+  }
+
+  
+  /**
+   * Append non-empty buckets of samples between from and to, in one pass over the ring buffer - from a margin past
+   * its oldest sample, leaving out any overwritten while reading
+   */
+  static void buckets( Sampler.Channel channel, long from, long to, long bucket, boolean filtered, StringBuilder json )
+  {
+    long now     = System.nanoTime();
+    long fromN   = now + TimeUnit.MILLISECONDS.toNanos( from );
+    long toN     = now + TimeUnit.MILLISECONDS.toNanos( to );
+    long bucketN = TimeUnit.MILLISECONDS.toNanos( bucket );
+
+    long   end   = channel.count();
+    long   index = -1;
+    double min = 0, max = 0, last = 0, sum = 0;
+    int    n   = 0;
+    
+    for ( long s = channel.safe() ; s < end ; s++ )
+    {
+      long   time  = channel.timeAt( s );
+      double value = filtered ? channel.filteredAt( s ) : channel.valueAt( s );
+      
+      if ( time < fromN || time >= toN || s < channel.oldest() )
+        continue;
+      
+      long b = (time - fromN) / bucketN;
+      
+      if ( b != index )
+      {
+        if ( n > 0 )
+          bucket( json, index, min, max, sum, last, n );
+        
+        index = b;
+        min   = max = value;
+        sum   = n = 0;
+      }
+      
+      if ( value < min ) min = value;
+      if ( value > max ) max = value;
+
+      sum += value;
+      last = value;
+      n++;
+    }
+    
+    if ( n > 0 )
+      bucket( json, index, min, max, sum, last, n );
+  }
+
+  static private void bucket( StringBuilder json, long index, double min, double max, double sum, double last, int n )
+  {
+    if ( json.charAt( json.length() - 1 ) == ']' )
+      json.append( ',' );
+
+    json.append( '[' ).append( index );
+    json.append( ',' );  number( json, min      );
+    json.append( ',' );  number( json, max      );
+    json.append( ',' );  number( json, sum / n  );
+    json.append( ',' );  number( json, last     );
+    json.append( ',' ).append( n ).append( ']' );
+  }
+
+  /** Append number to 2 decimal places, without a fraction if whole */
+  static private void number( StringBuilder json, double x )
+  {
+    double rounded = Math.round( x * 100 ) / 100.0;
+    
+    if ( rounded == (long) rounded )
+      json.append( (long) rounded );
+    else
+      json.append( rounded );
+  }
+
+}
@@ -1,7 +1,14 @@
 package com.github.drichm.ev3.server.servlet;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
 import com.github.drichm.ev3.json.Memory;
 import com.github.drichm.ev3.server.api.IHttp;
+import com.github.drichm.ev3.server.utils.JSON;
+import com.github.drichm.ev3.server.utils.Mime;
 
 
 /** Serve EV3 status as JSON */
@@ -12,12 +19,16 @@ public class Status extends UrlContextServer
   static public class JsonReply
   {
     public final Memory               memory;
+    public final Map<String,Object>   reports = new LinkedHashMap<>();
     
+    /** Time taken getting the reports */
     public long millis;
 
-    public JsonReply()
+    public JsonReply( Map<String,Supplier<?>> reports )
     {
       this.memory = new Memory();
+      
+      reports.forEach( (name, report) -> this.reports.put( name, report.get() ) );
     }
   }
 
@@ -25,21 +36,35 @@ public class Status extends UrlContextServer
 
   //===========================================================================
   
+  /** name:supplier map of subsystem reports */
+  private final Map<String,Supplier<?>> reports = new ConcurrentHashMap<>();
+  
   public Status( String urlContext )
   {
     super( urlContext );
   }
 
   
+  /** Include a subsystem's report in status, under given name */
+  public void report( String name, Supplier<?> report )
+  {
+    reports.put( name, report );
+  }
+  
+  
+  /** Reports are got as the reply is sent, so timed there */
   @Override public void serve( IHttp http, String path )
   {
-    long millis = System.currentTimeMillis();
-
-    JsonReply json = new JsonReply();
-
-    json.millis = System.currentTimeMillis() - millis;
-    
-    http.json( json );
+    http.write( out ->
+    {
+      long millis = System.currentTimeMillis();
+  
+      JsonReply json = new JsonReply( reports );
+  
+      json.millis = System.currentTimeMillis() - millis;
+      
+      JSON.stringifyInto( json, out );
+    }, Mime.JSON );
   }
 
 }
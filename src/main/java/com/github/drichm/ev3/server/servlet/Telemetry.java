@@ -0,0 +1,353 @@
+package com.github.drichm.ev3.server.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.github.drichm.ev3.lib.EV3Repository;
+import com.github.drichm.ev3.lib.FixedRate;
+import com.github.drichm.ev3.lib.hardware.AttributeInstance;
+import com.github.drichm.ev3.lib.hardware.Batch;
+import com.github.drichm.ev3.lib.hardware.CommandBatch;
+import com.github.drichm.ev3.lib.hardware.DeviceNodeInstance;
+import com.github.drichm.ev3.lib.hardware.Tacho;
+import com.github.drichm.ev3.server.api.ISocket;
+import com.github.drichm.ev3.server.utils.JSON;
+
+/**
+ * Push attribute values to WebSocket clients as they change, and take motor commands from them
+ * <p>
+ * Client messages:
+ * <ul>
+ * <li>{@code {"op":"subscribe","node":"lego-sensor/sensor0","attr":["value0","value1"]}} - the current values
+ * are sent at once, then each value again whenever it changes</li>
+ * <li>{@code {"op":"unsubscribe","node":"lego-sensor/sensor0","attr":["value0"]}} - no attr for all of a node's</li>
+ * <li>{@code {"op":"command","motors":{"motor0":{"speed_sp":500,"command":"run-forever"},...}}} - as {@link Command}</li>
+ * </ul>
+ * Updates are {@code {"node":..,"attr":..,"s":..,"millis":..}}, "s" null if the value could not be read.
+ * Each update is encoded once and the same frame sent to every subscriber. All subscribed attributes of a
+ * node are read back-to-back, once per tick, however many clients want them.
+ * <p>
+ * Updates are queued on each socket with {@link ISocket#offer(byte[])}, so the tick never blocks on a slow client -
+ * one that cannot keep up is dropped. Nothing is sent while holding the lock.
+ */
+public class Telemetry extends FixedRate
+{
+  //===========================================================================
+
+  static public class JsonRequest
+  {
+    public String                         op;
+    public String                         node;
+    public String[]                       attr;
+    public Map<String,Map<String,String>> motors;
+  }
+
+  static public class JsonUpdate
+  {
+    public final String node;
+    public final String attr;
+    public final String s;
+    public final long   millis;
+    
+    JsonUpdate( Watch w, long millis )
+    {
+      this.node   = w.node.name();
+      this.attr   = w.attr.name();
+      this.s      = w.last;
+      this.millis = millis;
+    }
+  }
+
+  static public class JsonError
+  {
+    public final String error;
+    
+    public JsonError( String error )  { this.error = error; }
+  }
+  
+  static public class Report
+  {
+    public final int  watches;
+    public final int  sockets;
+    public final long frames;
+    public final long sends;
+    public final long dropped;
+  
+    Report( Telemetry t )
+    {
+      this.watches = t.watches.size();
+      this.sockets = (int) t.watches.values().stream().flatMap( w -> Arrays.stream( w.sockets ) ).distinct().count();
+      this.frames  = t.frames;
+      this.sends   = t.sends;
+      this.dropped = t.dropped;
+    }
+  }
+  
+  
+  /** One subscribed attribute, its last value pushed, and its subscribers */
+  static class Watch
+  {
+    final DeviceNodeInstance  node;
+    final AttributeInstance   attr;
+    
+    volatile String           last;
+    volatile ISocket[]        sockets = {};
+    
+    Watch( DeviceNodeInstance node, AttributeInstance attr )
+    {
+      this.node = node;
+      this.attr = attr;
+    }
+  }
+  
+  /** A node's watched attributes, read as one batch */
+  static private class Group
+  {
+    final DeviceNodeInstance  node;
+    final Watch[]             watches;
+    final Batch               batch;
+    
+    Group( DeviceNodeInstance node, Watch[] watches )
+    {
+      this.node    = node;
+      this.watches = watches;
+      this.batch   = new Batch( Arrays.stream( watches ).map( w -> w.attr ).toArray( AttributeInstance[]::new ) );
+    }
+  }
+  
+  
+  //===========================================================================
+
+  public final EV3Repository     repo;
+  
+  /** "node/attribute":watch map - changed under lock, with groups rebuilt to match */
+  private final Map<String,Watch> watches = new TreeMap<>();
+  private volatile Group[]        groups  = {};
+  
+  /** Frames encoded, queued, and sockets dropped as too slow */
+  private volatile long           frames;
+  private volatile long           sends;
+  private volatile long           dropped;
+  
+  
+  public Telemetry( EV3Repository repo, long periodNanos )
+  {
+    super( "ev3-telemetry", periodNanos, Thread.NORM_PRIORITY );
+    
+    this.repo = repo;
+  }
+
+  
+  //===========================================================================
+
+  public synchronized Report report()  { return new Report( this ); }
+  
+
+  public void onMessage( ISocket socket, String message ) throws IOException
+  {
+    JsonRequest request;
+    
+    try
+    {
+      request = JSON.parse( message, JsonRequest.class );
+    }
+    catch ( RuntimeException e )
+    {
+      socket.send( JSON.stringify( new JsonError( "Not JSON: " + e.getMessage() ) ) );
+      return;
+    }
+    
+    if ( request == null || request.op == null )
+    {
+      socket.send( JSON.stringify( new JsonError( "No op" ) ) );
+      return;
+    }
+    
+    switch ( request.op )
+    {
+      case "subscribe":
+        subscribe( socket, request.node, request.attr );
+        break;
+        
+      case "unsubscribe":
+        unsubscribe( socket, request.node, request.attr );
+        break;
+        
+      case "command":
+        command( socket, request.motors );
+        break;
+        
+      default:
+        socket.send( JSON.stringify( new JsonError( "Unknown op: " + request.op ) ) );
+    }
+  }
+  
+  public void onClose( ISocket socket )
+  {
+    unsubscribe( socket, null, null );
+  }
+  
+  
+  //===========================================================================
+
+  private void subscribe( ISocket socket, String subpath, String[] attrs ) throws IOException
+  {
+    DeviceNodeInstance node = DeviceNodeInstance.parse( subpath );
+    
+    if ( node == null || attrs == null || attrs.length == 0 )
+    {
+      socket.send( JSON.stringify( new JsonError( "Subscribe needs node and attr" ) ) );
+      return;
+    }
+    
+    List<Watch>  added   = new ArrayList<>();
+    List<String> missing = new ArrayList<>();
+    
+    synchronized ( this )
+    {
+      for ( String name: attrs )
+      {
+        AttributeInstance attr = repo.sysfs.attribute( node, name );
+  
+        if ( attr == null )
+        {
+          missing.add( name );
+          continue;
+        }
+        
+        Watch w = watches.computeIfAbsent( node.name() + "/" + attr.name(), k -> new Watch( node, attr ) );
+        
+        if ( !Arrays.asList( w.sockets ).contains( socket ) )
+        {
+          w.sockets = Arrays.copyOf( w.sockets, w.sockets.length + 1 );
+          w.sockets[ w.sockets.length - 1 ] = socket;
+        }
+
+        added.add( w );
+      }
+      
+      regroup();
+    }
+    
+    for ( String name: missing )
+      socket.send( JSON.stringify( new JsonError( "No such attribute: " + subpath + "/" + name ) ) );
+    
+    // values already known go out now - the rest on the next tick they are read
+    long millis = System.currentTimeMillis();
+    
+    for ( Watch w: added )
+      if ( w.last != null )
+        socket.send( JSON.stringify( new JsonUpdate( w, millis ) ) );
+    
+    start();
+  }
+  
+  /** Unsubscribe socket from node's attributes, or all of node's if none given, or all nodes' if no node */
+  private synchronized void unsubscribe( ISocket socket, String subpath, String[] attrs )
+  {
+    List<String> names = attrs == null ? null : Arrays.asList( attrs );
+    
+    for ( Watch w: watches.values() )
+      if ( (subpath == null || w.node.name().equals( subpath )) && (names == null || names.contains( w.attr.name() )) )
+        w.sockets = Arrays.stream( w.sockets ).filter( s -> s != socket ).toArray( ISocket[]::new );
+    
+    watches.values().removeIf( w -> w.sockets.length == 0 );
+    
+    regroup();
+  }
+  
+  /** Rebuild groups from watches - call under lock */
+  private void regroup()
+  {
+    Map<DeviceNodeInstance,List<Watch>> byNode = new LinkedHashMap<>();
+    
+    for ( Watch w: watches.values() )
+      byNode.computeIfAbsent( w.node, k -> new ArrayList<>() ).add( w );
+    
+    groups = byNode.entrySet().stream()
+                   .map    ( e -> new Group( e.getKey(), e.getValue().toArray( new Watch[0] ) ) )
+                   .toArray( Group[]::new );
+  }
+  
+  
+  private void command( ISocket socket, Map<String,Map<String,String>> motors ) throws IOException
+  {
+    if ( motors == null || motors.isEmpty() )
+    {
+      socket.send( JSON.stringify( new JsonError( "Command needs motors" ) ) );
+      return;
+    }
+
+    CommandBatch batch;
+    
+    try
+    {
+      batch = Command.batch( repo, new TreeMap<>( motors ) );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      socket.send( JSON.stringify( new JsonError( "No such motor or attribute: " + e.getMessage() ) ) );
+      return;
+    }
+    
+    repo.sysfs.writeAll( batch );
+    
+    motors.keySet().forEach( m -> repo.values.invalidate( Tacho.motor( m ) ) );
+
+    socket.send( JSON.stringify( new Command.JsonReply( batch ) ) );
+  }
+
+  
+  //===========================================================================
+
+  @Override protected void tick( long deadline )
+  {
+    List<ISocket> dead = null;
+    
+    for ( Group g: groups )
+    {
+      repo.values.readAll( g.node, g.batch );
+      
+      for ( int i=0 ; i < g.watches.length ; i++ )
+      {
+        Watch  w    = g.watches[i];
+        String text = g.batch.text( i );
+        
+        if ( text == null ? w.last == null : text.equals( w.last ) )
+          continue;
+
+        w.last = text;
+        
+        byte[] frame = ISocket.frame( JSON.stringify( new JsonUpdate( w, g.batch.millis ) ) );
+        
+        frames = frames + 1;
+        
+        for ( ISocket s: w.sockets )
+          if ( s.offer( frame ) )
+            sends = sends + 1;
+          else
+          {
+            if ( dead == null )
+              dead = new ArrayList<>();
+            
+            if ( !dead.contains( s ) )
+              dead.add( s );
+          }
+      }
+    }
+    
+    // already closed or dropped by offer(), so only forgotten here
+    if ( dead != null )
+      for ( ISocket s: dead )
+      {
+        dropped = dropped + 1;
+        unsubscribe( s, null, null );
+      }
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.github.drichm.ev3.server.servlet;
 
+import java.util.List;
+
 import com.github.drichm.ev3.server.api.IHttp;
 import com.github.drichm.ev3.server.api.IServer;
 
@@ -37,6 +39,62 @@ abstract public class UrlContextServer implements IServer
   abstract protected void serve( IHttp http, String path );
   
   
+  /** First value of query parameter, null if none */
+  static protected String param( IHttp http, String name )
+  {
+    List<String> values = http.parameters().get( name );
+    
+    return values == null || values.isEmpty() ? null : values.get( 0 );
+  }
+
+  /** First value of query parameter as a number, fallback if none or not a number */
+  static protected long param( IHttp http, String name, long fallback )
+  {
+    String value = param( http, name );
+    
+    try
+    {
+      return value == null ? fallback : Long.parseLong( value.trim() );
+    }
+    catch ( NumberFormatException e )
+    {
+      return fallback;
+    }
+  }
+
+  /** First value of query parameter as a decimal, fallback if none or not a number */
+  static protected double param( IHttp http, String name, double fallback )
+  {
+    String value = param( http, name );
+    
+    try
+    {
+      return value == null ? fallback : Double.parseDouble( value.trim() );
+    }
+    catch ( NumberFormatException e )
+    {
+      return fallback;
+    }
+  }
+
+  
+  /**
+   * Serve request whose path is known to be urlContext, or to start with urlContext + '/' - as matched by a router
+   */
+  public void route( IHttp http, String path )
+  {
+    if ( path.length() == urlContext.length() )
+    {
+      if ( needSlash )
+        http.redirect( urlContext2 );
+      else
+        serve( http, "" );
+    }
+    else
+      serve( http, path.substring( urlContext2.length() ).trim() );
+  }
+
+  
   //===========================================================================
   
   /**
@@ -48,27 +106,13 @@ abstract public class UrlContextServer implements IServer
   {
     String path = http.path();
     
-    if ( !path.startsWith( urlContext ) )
-      return false;
-    else
-    if ( path.equals( urlContext ) )
+    if ( path.equals( urlContext ) || path.startsWith( urlContext2 ) )
     {
-      if ( needSlash )
-        http.redirect( urlContext2 );
-      else
-        serve( http, "" );
-      
+      route( http, path );
       return true;
     }
     else
-    if ( !path.startsWith( urlContext2 ) )
       return false;
-    else
-    {
-      serve( http, path.substring( urlContext2.length() ).trim() );
-    
-      return true;
-    }
   }
 
 }
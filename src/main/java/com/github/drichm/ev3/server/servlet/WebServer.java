@@ -1,28 +1,144 @@
 package com.github.drichm.ev3.server.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
+import com.github.drichm.ev3.server.Defaults;
 import com.github.drichm.ev3.server.api.IHttp;
 import com.github.drichm.ev3.server.utils.Mime;
 
 /**
  * Map URLs to files and serve the file
+ * <p>
+ * Files up to a size are kept in memory, least recently used dropped first, along with a gzipped copy when that is
+ * smaller. Replies carry a strong ETag (CRC of the content) and Last-Modified, and are 304 Not Modified when the
+ * client's copy is current. The versioned assets/ tree is cacheable by browsers for a year; everything else is
+ * checked with the server each time.
+ * <p>
+ * Files too big to cache, and Range requests (one range; If-Range honoured), are sent straight from the file.
  */
 public class WebServer extends UrlContextServer
 {
+  //===========================================================================
+  
+  /** Files under here have their version in their path, so never change */
+  static public final Path   ASSETS = Paths.get( "assets" );
+  
+  static public final String IMMUTABLE = "public, max-age=31536000, immutable";
+  static public final String REVALIDATE = "no-cache";
+  
+  static private final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone( ZoneOffset.UTC );
+  
+  /** Range that no byte of the file satisfies */
+  static private final long[] UNSATISFIABLE = {};
+  
+  
+  /** Cached file */
+  static private class Asset
+  {
+    final long   modified;
+    final long   size;
+    final byte[] bytes;
+    final byte[] gzip;
+    final String etag;
+    final String gzipETag;
+    
+    Asset( File file, Mime mime ) throws IOException
+    {
+      this.modified = file.lastModified();
+      this.bytes    = Files.readAllBytes( file.toPath() );
+      this.size     = bytes.length;
+      
+      CRC32 crc = new CRC32();
+      crc.update( bytes );
+      
+      String tag = Long.toHexString( crc.getValue() ) + "-" + Long.toHexString( size );
+      
+      byte[] gzip = compressible( mime ) ? gzip( bytes ) : null;
+      
+      this.gzip     = gzip != null && gzip.length < size - size / 8 ? gzip : null;
+      this.etag     = '"' + tag + '"';
+      this.gzipETag = '"' + tag + "-gz\"";
+    }
+    
+    /** Is the file on disk still this one */
+    boolean current( File file )
+    {
+      return file.lastModified() == modified && file.length() == size;
+    }
+    
+    long memory()  { return bytes.length + (gzip != null ? gzip.length : 0); }
+  }
+  
+  static private boolean compressible( Mime mime )
+  {
+    switch ( mime )
+    {
+      case SVG:
+      case TTF:
+      case OTF:
+      case EOT:
+      case UNKNOWN:
+        return true;
+        
+      default:
+        return mime.isText();
+    }
+  }
+  
+  static private byte[] gzip( byte[] bytes ) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream( bytes.length / 3 );
+    
+    try ( GZIPOutputStream gz = new GZIPOutputStream( out ) )
+    {
+      gz.write( bytes );
+    }
+    
+    return out.toByteArray();
+  }
+  
+  
   //===========================================================================
   
   public final Path   root;
   
+  /** Most memory used by cached files, and largest file cached */
+  public final long   cacheBytes;
+  public final long   maxFile;
+  
+  /** Cached files by path, in access order - guarded by itself */
+  private final Map<Path,Asset> cache = new LinkedHashMap<>( 64, 0.75f, true );
+  private long                  cached;
+  
   /** Map URL context to root directory */
   public WebServer( String urlContext, Path root )
+  {
+    this( urlContext, root, Defaults.WEB_CACHE_BYTES );
+  }
+  
+  /** Map URL context to root directory, caching up to cacheBytes of files */
+  public WebServer( String urlContext, Path root, long cacheBytes )
   {
     super( urlContext );
     
-    this.root = root;
+    this.root       = root;
+    this.cacheBytes = cacheBytes;
+    this.maxFile    = cacheBytes / 4;
   }
   
   
@@ -38,8 +154,6 @@ public class WebServer extends UrlContextServer
   /** Serve file, or index.html if file is a directory */
   public void serve( IHttp http, File file, Mime mime )
   {
-    //String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-    
     if ( file == null )
     {
       http.status( 404 );
@@ -52,20 +166,243 @@ public class WebServer extends UrlContextServer
       mime = Mime.HTML;
     }
 
-    if ( !file.exists() )
+    if ( !file.isFile() )
+    {
       http.status( 404, file.getAbsolutePath() );
-    else
-      try
+      return;
+    }
+    
+    if ( mime == null )
+      mime = Mime.from( file, Mime.UNKNOWN );
+    
+    if ( mime == null )
+      mime = Mime.UNKNOWN;
+    
+    try
+    {
+      Asset   asset    = asset( file, mime );
+      long    modified = (asset != null ? asset.modified : file.lastModified()) / 1000 * 1000;
+      long    size     = asset != null ? asset.size : file.length();
+      boolean ranged   = http.headers().containsKey( "range" );
+      boolean gzip     = !ranged && asset != null && asset.gzip != null && accepts( http.headers().get( "accept-encoding" ), "gzip" );
+      
+      // files too big to cache get a weak tag from size and time
+      String  etag     = asset == null ? "W/\"" + Long.toHexString( size ) + "-" + Long.toHexString( modified ) + '"'
+                       : gzip          ? asset.gzipETag
+                                       : asset.etag;
+      
+      long[]  range    = ranged ? range( http, size, etag, modified ) : null;
+
+      if ( notModified( http, etag, modified ) )
+        http.status( 304 );
+      else
+      if ( range == UNSATISFIABLE )
+      {
+        http.status( 416 );
+        http.header( "Content-Range", "bytes */" + size );
+      }
+      else
+      if ( range != null )
       {
-        //System.out.println( file.getAbsolutePath() );
+        // a range of the whole file is sent as 200, which has no Content-Range
+        http.write( file.toPath(), range[0], range[1] - range[0] + 1, mime );
         
-        http.write( Files.newInputStream( file.toPath() ), file.length(), mime != null ? mime : Mime.from( file, Mime.UNKNOWN ) );
+        if ( range[0] > 0 || range[1] < size - 1 )
+          http.header( "Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size );
       }
-      catch ( IOException e )
+      else
+      if ( asset == null )
+        http.write( file.toPath(), 0, size, mime );
+      else
+      if ( gzip )
       {
-        throw new RuntimeException( file.getAbsolutePath(), e  ); 
+        http.write( asset.gzip, mime );
+        http.header( "Content-Encoding", "gzip" );
       }
+      else
+        http.write( asset.bytes, mime );
+      
+      http.header( "ETag", etag );
+      http.header( "Last-Modified", HTTP_DATE.format( Instant.ofEpochMilli( modified ) ) );
+      http.header( "Cache-Control", isAsset( file ) ? IMMUTABLE : REVALIDATE );
+      http.header( "Accept-Ranges", "bytes" );
+      
+      if ( asset != null && asset.gzip != null )
+        http.header( "Vary", "Accept-Encoding" );
+    }
+    catch ( IOException e )
+    {
+      throw new RuntimeException( file.getAbsolutePath(), e  ); 
+    }
   }
+  
+  private boolean isAsset( File file )
+  {
+    return file.toPath().startsWith( root.resolve( ASSETS ) );
+  }
+  
+  
+  //===========================================================================
+  // Cache
 
-} // end of class WebServer
+  /** Cached copy of file, (re)read if not cached or changed - null if too big to cache */
+  private Asset asset( File file, Mime mime ) throws IOException
+  {
+    Path path = file.toPath();
+    
+    synchronized ( cache )
+    {
+      Asset asset = cache.get( path );
+      
+      if ( asset != null && asset.current( file ) )
+        return asset;
+    }
+    
+    if ( file.length() > maxFile )
+      return null;
+    
+    // read outside lock - racing readers of one file just cache it twice
+    Asset asset = new Asset( file, mime );
+
+    synchronized ( cache )
+    {
+      Asset old = cache.put( path, asset );
+      
+      cached += asset.memory() - (old != null ? old.memory() : 0);
+      
+      for ( Iterator<Asset> lru = cache.values().iterator() ; cached > cacheBytes && lru.hasNext() ; )
+      {
+        Asset a = lru.next();
+
+        if ( a != asset )
+        {
+          cached -= a.memory();
+          lru.remove();
+        }
+      }
+    }
+    
+    return asset;
+  }
+  
+  
+  //===========================================================================
+  // Conditional requests and negotiation
+
+  /** Does client's copy match - If-None-Match, or failing that If-Modified-Since */
+  static private boolean notModified( IHttp http, String etag, long modified )
+  {
+    String match = http.headers().get( "if-none-match" );
+    
+    if ( match != null )
+    {
+      String tag = weak( etag );
+
+      for ( String t: match.split( "," ) )
+        if ( t.trim().equals( "*" ) || weak( t.trim() ).equals( tag ) )
+          return true;
+
+      return false;
+    }
+    
+    String since = http.headers().get( "if-modified-since" );
+    
+    if ( since != null && (http.method().equals( "GET" ) || http.method().equals( "HEAD" )) )
+      try
+      {
+        return modified <= ZonedDateTime.parse( since, HTTP_DATE ).toInstant().toEpochMilli();
+      }
+      catch ( DateTimeParseException e )
+      { // ignore it, as RFC 7232 says
+      }
+    
+    return false;
+  }
 
+  /**
+   * First and last byte of the one range asked for, null to send the whole file (no or several ranges, bad syntax,
+   * or If-Range not matching) - UNSATISFIABLE if it starts past the end
+   */
+  static private long[] range( IHttp http, long size, String etag, long modified )
+  {
+    String range   = http.headers().get( "range" );
+    String ifRange = http.headers().get( "if-range" );
+    
+    if ( ifRange != null && !ifRange.trim().equals( etag ) && !ifRange.trim().equals( HTTP_DATE.format( Instant.ofEpochMilli( modified ) ) ) )
+      return null;
+    
+    if ( !range.startsWith( "bytes=" ) || range.indexOf( ',' ) >= 0 || etag.startsWith( "W/" ) && ifRange != null )
+      return null;
+    
+    String spec = range.substring( 6 ).trim();
+    int    dash = spec.indexOf( '-' );
+    
+    try
+    {
+      if ( dash < 0 )
+        return null;
+      
+      // suffix: last n bytes
+      if ( dash == 0 )
+      {
+        long n = Long.parseLong( spec.substring( 1 ) );
+        
+        return n <= 0 || size == 0 ? UNSATISFIABLE : new long[]{ Math.max( 0, size - n ), size - 1 };
+      }
+      
+      long first = Long.parseLong( spec.substring( 0, dash ) );
+      long last  = dash == spec.length() - 1 ? size - 1 : Long.parseLong( spec.substring( dash + 1 ) );
+      
+      if ( first >= size )
+        return UNSATISFIABLE;
+      
+      return last < first ? null : new long[]{ first, Math.min( last, size - 1 ) };
+    }
+    catch ( NumberFormatException e )
+    {
+      return null;
+    }
+  }
+
+  /** Tag without any weak marker, for weak comparison */
+  static private String weak( String etag )
+  {
+    return etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+  }
+
+  /** Does Accept-Encoding header allow coding (with q > 0, by name or by "*") */
+  static protected boolean accepts( String acceptEncoding, String coding )
+  {
+    if ( acceptEncoding == null )
+      return false;
+    
+    Boolean any = null;
+    
+    for ( String part: acceptEncoding.split( "," ) )
+    {
+      String[] p    = part.split( ";" );
+      String   name = p[0].trim();
+      double   q    = 1;
+      
+      for ( int i=1 ; i < p.length ; i++ )
+        if ( p[i].trim().startsWith( "q=" ) )
+          try
+          {
+            q = Double.parseDouble( p[i].trim().substring( 2 ) );
+          }
+          catch ( NumberFormatException e )
+          {
+            q = 0;
+          }
+      
+      if ( name.equalsIgnoreCase( coding ) )
+        return q > 0;
+      
+      if ( name.equals( "*" ) )
+        any = q > 0;
+    }
+    
+    return any != null && any;
+  }
+
+} // end of class WebServer